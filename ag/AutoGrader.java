@@ -84,6 +84,11 @@ public class AutoGrader {
 	}	
     }
 
+    String getStringArgument(String key, String defaultValue) {
+	String value = testArgs.get(key);
+	return (value != null) ? value : defaultValue;
+    }
+
     String getStringArgument(String key) {
 	String value = (String) testArgs.get(key);
 	Lib.assertTrue(value != null,
@@ -102,6 +107,13 @@ public class AutoGrader {
 	}
     }
 
+    int getIntegerArgument(String key, int defaultValue) {
+	if (testArgs.get(key) == null)
+	    return defaultValue;
+
+	return getIntegerArgument(key);
+    }
+
     boolean getBooleanArgument(String key) {
 	String value = getStringArgument(key);
 
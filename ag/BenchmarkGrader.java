@@ -0,0 +1,933 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+/**
+ * An autograder that measures how fast the simulator runs, instead of testing
+ * the kernel. It reports simulated instructions per second for a list of
+ * user programs, context switches per second, the cost of each kernel
+ * synchronization primitive, and the host time taken by a system call round
+ * trip and by the dispatch of a page fault.
+ *
+ * <p>
+ * The synchronization benchmarks time <tt>KThread.yield()</tt>, forking and
+ * joining a thread that does nothing, a
+ * <tt>Semaphore</tt> ping-pong, a contended <tt>Lock</tt> handed between two
+ * threads, a <tt>Condition2</tt> ping-pong, <tt>Communicator</tt> words,
+ * <tt>Channel</tt> words and batches, and <tt>Alarm.waitUntil()</tt>. Each
+ * reports both the host time and the simulated time per operation.
+ *
+ * <p>
+ * Run it from a project directory with
+ *
+ * <pre>
+ *	nachos -- nachos.ag.BenchmarkGrader -# programs=sort.coff:cp.coff
+ * </pre>
+ *
+ * <p>
+ * The grader understands the following arguments, all of which are optional:
+ * <tt>programs</tt>, a colon-separated list of programs to time (default
+ * <tt>sort.coff:cp.coff:echo.coff</tt>, skipping any that are missing);
+ * <tt>warmup</tt>, the number of untimed runs of each benchmark (default 5);
+ * <tt>runs</tt>, the number of timed runs (default 9); and
+ * <tt>iterations</tt>, the number of context switches, operations, system
+ * calls or page faults in each run of the kernel benchmarks (default 10000).
+ * Every result is the median of the timed runs, with the fastest and slowest
+ * runs shown beside it.
+ *
+ * <p>
+ * <tt>cp.coff</tt> copies itself to a scratch file, which is removed after
+ * each run, and <tt>echo.coff</tt> echoes a line of words, so that neither
+ * just prints its usage. Other programs run with no arguments but their
+ * name.
+ *
+ * <p>
+ * The trap benchmarks time a <tt>close()</tt> system call on a bad file
+ * descriptor, a <tt>write()</tt> system call that copies a buffer out of the
+ * program, and a page fault. The <tt>write()</tt> benchmark writes to a file
+ * the grader provides, which discards the data, so that it measures the
+ * kernel rather than the stub file system's simulated disk delay. The page
+ * fault benchmark loads from two stack pages in turn. At each fault, the
+ * grader invalidates the other page, and the kernel makes the faulting page
+ * valid again and retries the load. Each trap benchmark subtracts the time
+ * of the same loop without the trap, so a run that host noise makes
+ * negative, or that lies far outside the others, is discarded.
+ *
+ * <p>
+ * If the JVM can count the memory each thread allocates, each trap benchmark
+ * also checks that a trap allocates nothing, from the trapping instruction
+ * through the kernel and back. The check is made in one untimed run right
+ * after the warmup runs, and fails if that run allocates anything. Memory
+ * allocated by interrupt handlers and context switches is not counted.
+ *
+ * <p>
+ * User programs are only timed if the kernel is a <tt>UserKernel</tt>. The
+ * grader ends each program itself when it calls <tt>exit()</tt> or
+ * <tt>halt()</tt>, so the measurements do not depend on the kernel's process
+ * management.
+ */
+public class BenchmarkGrader extends AutoGrader {
+    void init() {
+	StringTokenizer st =
+	    new StringTokenizer(getStringArgument("programs", defaultPrograms),
+				":");
+	programs = new String[st.countTokens()];
+	for (int i=0; i<programs.length; i++)
+	    programs[i] = st.nextToken();
+
+	warmup = getIntegerArgument("warmup", 5);
+	runs = getIntegerArgument("runs", 9);
+	iterations = getIntegerArgument("iterations", 10000);
+
+	Lib.assertTrue(warmup >= 0 && runs > 0 && iterations > 0,
+		       "bad benchmark arguments");
+    }
+
+    void run() {
+	System.out.println("benchmark: median of " + runs + " runs after " +
+			   warmup + " warmup runs");
+
+	programDone = new Semaphore(0);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { findThreadBean(); }
+	    });
+
+	benchmarkContextSwitches();
+	benchmarkSynchronization();
+
+	if (kernel instanceof UserKernel) {
+	    // every program runs in this process, one after another, so that
+	    // the runs only differ in the program
+	    process = UserProcess.newUserProcess();
+
+	    for (int i=0; i<programs.length; i++)
+		benchmarkProgram(programs[i]);
+
+	    benchmarkTrap("syscall", closeLoop(syscall), closeLoop(nop), 1);
+	    benchmarkWrite();
+	    if (!Machine.processor().hasTLB())
+		benchmarkFault();
+	}
+
+	kernel.terminate();
+    }
+
+    /**
+     * Time two threads that yield to each other.
+     */
+    private void benchmarkContextSwitches() {
+	double[] rates = new double[runs];
+
+	for (int run=-warmup; run<runs; run++) {
+	    Runnable yielder = new Runnable() {
+		    public void run() {
+			for (int i=0; i<iterations/2; i++)
+			    KThread.yield();
+		    }
+		};
+
+	    KThread thread = new KThread(yielder).setName("yielder");
+
+	    long switchesBefore = switches;
+	    long start = System.nanoTime();
+
+	    thread.fork();
+	    yielder.run();
+	    thread.join();
+
+	    long time = System.nanoTime() - start;
+
+	    if (run >= 0)
+		rates[run] = (switches - switchesBefore) * 1e9 / time;
+	}
+
+	report("context switches", rates, "switches/s");
+    }
+
+    /**
+     * Time each synchronization primitive with two threads that take turns
+     * using it.
+     */
+    private void benchmarkSynchronization() {
+	// with no other thread ready, yield() does not switch
+	benchmarkOperations("lone yield", new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations; i++)
+			KThread.yield();
+		}
+	    }, null);
+
+	final Runnable nothing = new Runnable() {
+		public void run() { }
+	    };
+	benchmarkOperations("fork and join", new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations; i++) {
+			KThread thread = new KThread(nothing);
+			thread.fork();
+			thread.join();
+		    }
+		}
+	    }, null);
+	reportThreadPool();
+
+	final Semaphore ping = new Semaphore(0), pong = new Semaphore(0);
+	benchmarkOperations("semaphore ping-pong", new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations; i++) {
+			ping.V();
+			pong.P();
+		    }
+		}
+	    }, new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations; i++) {
+			ping.P();
+			pong.V();
+		    }
+		}
+	    });
+
+	// each thread yields while holding the lock, so the other blocks
+	// in acquire() and is handed the lock on release()
+	final Lock lock = new Lock();
+	Runnable locker = new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations/2; i++) {
+			lock.acquire();
+			KThread.yield();
+			lock.release();
+		    }
+		}
+	    };
+	benchmarkOperations("lock handoff", locker, locker);
+
+	final Condition2 turnChanged = new Condition2(lock);
+	final boolean[] turn = new boolean[1];
+	benchmarkOperations("condition2 ping-pong",
+			    conditionPlayer(lock, turnChanged, turn, false),
+			    conditionPlayer(lock, turnChanged, turn, true));
+
+	final Communicator communicator = new Communicator();
+	benchmarkOperations("communicator word", new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations; i++)
+			communicator.speak(i);
+		}
+	    }, new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations; i++)
+			Lib.assertTrue(communicator.listen() == i,
+				       "communicator benchmark lost a word");
+		}
+	    });
+
+	final Channel rendezvous = new Channel(0);
+	benchmarkOperations("channel word", new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations; i++)
+			rendezvous.speak(i);
+		}
+	    }, new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations; i++)
+			Lib.assertTrue(rendezvous.listen() == i,
+				       "channel benchmark lost a word");
+		}
+	    });
+
+	final Channel channel = new Channel(channelBatch);
+	benchmarkOperations("channel " + channelBatch + "-word batch",
+			    new Runnable() {
+		public void run() {
+		    int[] words = new int[channelBatch];
+		    for (int i=0; i<iterations; i++) {
+			for (int j=0; j<channelBatch; j++)
+			    words[j] = i;
+			channel.speak(words);
+		    }
+		}
+	    }, new Runnable() {
+		public void run() {
+		    int[] words = new int[channelBatch];
+		    for (int i=0; i<iterations; i++) {
+			channel.listen(words);
+			Lib.assertTrue(words[0] == i &&
+				       words[channelBatch-1] == i,
+				       "channel benchmark lost a word");
+		    }
+		}
+	    });
+
+	benchmarkOperations("alarm wait", new Runnable() {
+		public void run() {
+		    for (int i=0; i<iterations; i++)
+			ThreadedKernel.alarm.waitUntil(alarmWait);
+		}
+	    }, null);
+    }
+
+    /**
+     * Print how many TCBs were started in a new Java thread and how many
+     * reused a pooled one, with the mean host time each way. The first
+     * threads are created while the JVM is still cold, so for the cost of
+     * creation without the pool, run with <tt>TCB.poolSize</tt> set to 0.
+     */
+    private void reportThreadPool() {
+	Stats stats = privilege.stats;
+
+	System.out.println("benchmark thread pool: " +
+			   stats.numThreadsCreated + " threads created" +
+			   meanTime(stats.threadCreationTime,
+				    stats.numThreadsCreated) + ", " +
+			   stats.numThreadsReused + " reused" +
+			   meanTime(stats.threadReuseTime,
+				    stats.numThreadsReused));
+    }
+
+    private static String meanTime(long time, int count) {
+	if (count == 0)
+	    return "";
+
+	return " (mean " + format((double) time / count) + " ns to start)";
+    }
+
+    /**
+     * Return one side of a <tt>Condition2</tt> ping-pong. The player waits
+     * until <tt>turn[0]</tt> equals <tt>me</tt>, passes the turn, and wakes
+     * the other player.
+     */
+    private Runnable conditionPlayer(final Lock lock,
+				     final Condition2 turnChanged,
+				     final boolean[] turn, final boolean me) {
+	return new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    for (int i=0; i<iterations/2; i++) {
+			while (turn[0] != me)
+			    turnChanged.sleep();
+			turn[0] = !me;
+			turnChanged.wake();
+		    }
+		    lock.release();
+		}
+	    };
+    }
+
+    /**
+     * Time <tt>iterations</tt> operations, and report the host time and the
+     * simulated time taken by each.
+     *
+     * @param	name	the name of the operation.
+     * @param	first	performs its share of the operations in the current
+     *			thread.
+     * @param	second	performs its share of the operations in a forked
+     *			thread, or <tt>null</tt> if <tt>first</tt> performs
+     *			them all.
+     */
+    private void benchmarkOperations(String name, Runnable first,
+				     Runnable second) {
+	double[] costs = new double[runs];
+	double[] ticks = new double[runs];
+
+	for (int run=-warmup; run<runs; run++) {
+	    KThread thread = null;
+	    if (second != null)
+		thread = new KThread(second).setName(name);
+
+	    long ticksBefore = privilege.stats.totalTicks;
+	    long start = System.nanoTime();
+
+	    if (thread != null)
+		thread.fork();
+	    first.run();
+	    if (thread != null)
+		thread.join();
+
+	    long time = System.nanoTime() - start;
+
+	    if (run >= 0) {
+		costs[run] = (double) time / iterations;
+		ticks[run] = (double) (privilege.stats.totalTicks - ticksBefore) /
+		    iterations;
+	    }
+	}
+
+	report(name, costs, "ns");
+	report(name + " simulated time", ticks, "ticks");
+    }
+
+    /**
+     * Time a user program from its first instruction until it exits.
+     */
+    private void benchmarkProgram(String name) {
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	if (file == null) {
+	    System.out.println("benchmark " + name + ": skipped, not found");
+	    return;
+	}
+	file.close();
+
+	double[] rates = new double[runs];
+	long instructions = 0;
+
+	for (int run=-warmup; run<runs; run++) {
+	    long time = runProgram(name, programArguments(name), null);
+	    instructions = endInstructions - startInstructions;
+
+	    ThreadedKernel.fileSystem.remove(scratchFile);
+
+	    if (run >= 0)
+		rates[run] = instructions * 1e9 / time;
+	}
+
+	report(name + " (" + instructions + " instructions)", rates,
+	       "instructions/s");
+    }
+
+    /**
+     * Return the arguments with which to run the specified program, so that
+     * it does real work rather than printing its usage.
+     */
+    private static String[] programArguments(String name) {
+	if (name.equals("cp.coff"))
+	    return new String[] { name, name, scratchFile };
+	else if (name.equals("echo.coff"))
+	    return echoArguments;
+	else
+	    return new String[] { name };
+    }
+
+    /**
+     * Time the traps made by one of the specified programs, which makes
+     * <tt>trapsPerIteration</tt> traps in each of <tt>iterations</tt>
+     * iterations of a loop. Each timed run also runs the other program,
+     * which is the same loop without the traps, and subtracts its time,
+     * leaving the cost of the traps alone.
+     */
+    private void benchmarkTrap(String kind, int[] trapCode, int[] loopCode,
+			       int trapsPerIteration) {
+	double[] costs = new double[runs];
+	int numTraps = iterations*trapsPerIteration;
+	// without warmup runs, the first traps load and compile the trap path,
+	// and the processor's block check copies memory on purpose
+	boolean checkAllocation = (threadBean != null && warmup > 0 &&
+				   !Config.getBoolean("Processor.jitVerify",
+						      false));
+
+	for (int run=-warmup; run<runs; run++) {
+	    // check allocation in a run of its own once the warmup runs have
+	    // compiled the trap path, since counting slows the traps down
+	    if (run == 0 && checkAllocation) {
+		trapAllocations = 0;
+		checkedTraps = 0;
+
+		countAllocations = true;
+		runTraps(kind, trapCode, numTraps);
+		countAllocations = false;
+	    }
+
+	    long trapTime = runTraps(kind, trapCode, numTraps);
+	    long loopTime = runProgram(null, null, loopCode);
+
+	    if (run >= 0)
+		costs[run] = (double) (trapTime - loopTime) / numTraps;
+	}
+
+	report(kind + " round trip", discardOutliers(costs), "ns");
+
+	if (checkAllocation) {
+	    System.out.println("benchmark " + kind + " allocation: " +
+			       trapAllocations + " bytes in " + checkedTraps +
+			       " traps");
+	    Lib.assertTrue(trapAllocations == 0,
+			   kind + " path allocates memory");
+	}
+    }
+
+    /**
+     * Run a program that should make the specified number of traps, and
+     * return its time.
+     */
+    private long runTraps(String kind, int[] code, int numTraps) {
+	long trapsBefore = traps;
+	long time = runProgram(null, null, code);
+
+	Lib.assertTrue(traps - trapsBefore == numTraps,
+		       kind + " benchmark trapped the wrong number of times");
+	return time;
+    }
+
+    /**
+     * Time <tt>write()</tt> system calls, with the kernel's file system
+     * replaced by one that gives the program a file discarding what is
+     * written to it.
+     */
+    private void benchmarkWrite() {
+	final FileSystem fileSystem = ThreadedKernel.fileSystem;
+
+	ThreadedKernel.fileSystem = new FileSystem() {
+		public OpenFile open(String name, boolean truncate) {
+		    if (name.equals(discardFile))
+			return new DiscardingFile(this);
+		    return fileSystem.open(name, truncate);
+		}
+
+		public boolean remove(String name) {
+		    return fileSystem.remove(name);
+		}
+	    };
+
+	benchmarkTrap("write syscall", writeLoop(syscall), writeLoop(nop), 1);
+
+	ThreadedKernel.fileSystem = fileSystem;
+    }
+
+    /**
+     * Time page faults handled by the kernel. Both loads of each iteration
+     * fault, since each fault invalidates the page of the other.
+     */
+    private void benchmarkFault() {
+	faultPages = true;
+	benchmarkTrap("page fault", faultLoop(true), faultLoop(false), 2);
+	faultPages = false;
+    }
+
+    /**
+     * Make the specified page of the running program invalid, and flush the
+     * processor's cached translations, which would still find it.
+     */
+    private void invalidatePage(int vpn) {
+	Processor processor = Machine.processor();
+	TranslationEntry[] pageTable = processor.getPageTable();
+
+	pageTable[vpn].valid = false;
+	processor.setPageTable(pageTable);
+    }
+
+    private void findThreadBean() {
+	java.lang.management.ThreadMXBean bean =
+	    ManagementFactory.getThreadMXBean();
+
+	if (bean instanceof com.sun.management.ThreadMXBean) {
+	    threadBean = (com.sun.management.ThreadMXBean) bean;
+
+	    if (!threadBean.isThreadAllocatedMemorySupported() ||
+		!threadBean.isThreadAllocatedMemoryEnabled()) {
+		threadBean = null;
+		return;
+	    }
+
+	    // reading the counter may itself allocate
+	    long first = allocatedBytes();
+	    allocationOverhead = allocatedBytes() - first;
+	}
+    }
+
+    private long allocatedBytes() {
+	return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Add the memory allocated since the previous trap to
+     * <tt>trapAllocations</tt>, unless an interrupt or a context switch came
+     * in between.
+     */
+    private void countAllocation() {
+	long allocated = allocatedBytes();
+	long time = privilege.stats.totalTicks;
+
+	// the processor may still be decoding the loop during the first traps
+	if (++runTraps > 10 && switches == lastSwitches &&
+	    time < nextInterrupt) {
+	    trapAllocations += allocated - lastAllocated - allocationOverhead;
+	    checkedTraps++;
+	}
+
+	long ticks = privilege.interrupt.ticksUntilNextInterrupt();
+	if (ticks == Long.MAX_VALUE)
+	    nextInterrupt = Long.MAX_VALUE;
+	else
+	    nextInterrupt = time + ticks*Stats.UserTick;
+
+	lastAllocated = allocated;
+	lastSwitches = switches;
+    }
+
+    /**
+     * Run a user program and wait for it to exit.
+     *
+     * @param	name	the program to run, or <tt>null</tt> to run
+     *			<tt>code</tt>.
+     * @param	args	the arguments to pass to the program, or
+     *			<tt>null</tt> for none.
+     * @param	code	the instructions of a generated program.
+     * @return	the host time in nanoseconds between the program's first
+     *		instruction and its exit.
+     */
+    private long runProgram(String name, String[] args, int[] code) {
+	if (code != null) {
+	    // any executable will do, since createLoader() replaces it
+	    name = Machine.getShellProgramName();
+	    generatedCode = code;
+	}
+
+	runTraps = 0;
+	if (args == null)
+	    args = new String[] { };
+
+	Lib.assertTrue(process.execute(name, args),
+		       "benchmark could not execute " + name);
+	programDone.P();
+
+	return endTime - startTime;
+    }
+
+    /**
+     * Return a program that makes a <tt>close()</tt> system call on a bad
+     * file descriptor in each iteration, or runs <tt>probe</tt> in its place.
+     */
+    private int[] closeLoop(int probe) {
+	return loop(new int[] { }, new int[] {
+		addiu(2, 0, syscallClose),
+		addiu(4, 0, -1),
+		probe,
+	    }, null);
+    }
+
+    /**
+     * Return a program that creates <tt>discardFile</tt>, and then writes
+     * <tt>writeSize</tt> bytes of its own code to it in each iteration, or
+     * runs <tt>probe</tt> in place of the system call.
+     */
+    private int[] writeLoop(int probe) {
+	return loop(new int[] {
+		addiu(2, 0, syscallCreate),
+		addiu(4, 0, dataAddress),
+		syscall,
+		addiu(18, 2, 0),
+	    }, new int[] {
+		addiu(2, 0, syscallWrite),
+		addiu(4, 18, 0),
+		addiu(5, 0, 0),
+		addiu(6, 0, writeSize),
+		probe,
+	    }, discardFile);
+    }
+
+    /**
+     * Return a program that loads from the top two pages of its stack in
+     * each iteration, or runs <tt>nop</tt>s instead if <tt>faulting</tt> is
+     * <tt>false</tt>.
+     */
+    private int[] faultLoop(boolean faulting) {
+	return loop(new int[] { }, new int[] {
+		faulting ? lw(8, -4, 29) : nop,
+		faulting ? lw(8, -4-Processor.pageSize, 29) : nop,
+	    }, null);
+    }
+
+    /**
+     * Return a program that runs <tt>setup</tt>, then runs <tt>body</tt>
+     * <tt>iterations</tt> times in a loop, and exits.
+     *
+     * @param	data	a string to store at <tt>dataAddress</tt>, or
+     *			<tt>null</tt> for none.
+     */
+    private int[] loop(int[] setup, int[] body, String data) {
+	int[] code = new int[Processor.pageSize/4];
+	int i = 0;
+
+	code[i++] = lui(16, iterations >>> 16);
+	code[i++] = ori(16, 16, iterations & 0xFFFF);
+	for (int j=0; j<setup.length; j++)
+	    code[i++] = setup[j];
+	for (int j=0; j<body.length; j++)
+	    code[i++] = body[j];
+	code[i++] = addiu(16, 16, -1);
+	code[i++] = bne(16, 0, -(body.length+2));
+	code[i++] = nop;
+	code[i++] = addiu(2, 0, syscallExit);
+	code[i++] = addiu(4, 0, 0);
+	code[i++] = syscall;
+
+	Lib.assertTrue(i*4 <= dataAddress);
+
+	if (data != null) {
+	    byte[] bytes = Arrays.copyOf(data.getBytes(), data.length()+1);
+	    for (int j=0; j<bytes.length; j++)
+		code[dataAddress/4 + j/4] |= (bytes[j] & 0xFF) << (j%4 * 8);
+	}
+
+	return code;
+    }
+
+    private static int immediate(int op, int rs, int rt, int imm) {
+	return (op<<26) | (rs<<21) | (rt<<16) | (imm & 0xFFFF);
+    }
+
+    private static int addiu(int rt, int rs, int imm) {
+	return immediate(0x09, rs, rt, imm);
+    }
+
+    private static int ori(int rt, int rs, int imm) {
+	return immediate(0x0D, rs, rt, imm);
+    }
+
+    private static int lui(int rt, int imm) {
+	return immediate(0x0F, 0, rt, imm);
+    }
+
+    private static int lw(int rt, int imm, int rs) {
+	return immediate(0x23, rs, rt, imm);
+    }
+
+    private static int bne(int rs, int rt, int offset) {
+	return immediate(0x05, rs, rt, offset);
+    }
+
+    private static final int nop = 0;
+    private static final int syscall = 0x0C;
+
+    /**
+     * Return the specified samples without those that are negative, or that
+     * lie outside the usual fences of 1.5 interquartile ranges beyond the
+     * quartiles, printing how many were discarded. With fewer than 4
+     * samples there are no quartiles to speak of, so all are returned.
+     */
+    private double[] discardOutliers(double[] samples) {
+	if (samples.length < 4)
+	    return samples;
+
+	double[] sorted = samples.clone();
+	Arrays.sort(sorted);
+
+	double q1 = sorted[sorted.length/4];
+	double q3 = sorted[(sorted.length*3)/4];
+	double low = Math.max(0, q1 - 1.5*(q3-q1));
+	double high = q3 + 1.5*(q3-q1);
+
+	int kept = 0;
+	for (int i=0; i<sorted.length; i++) {
+	    if (sorted[i] >= low && sorted[i] <= high)
+		sorted[kept++] = sorted[i];
+	}
+
+	if (kept < sorted.length) {
+	    System.out.println("benchmark: discarded " +
+			       (sorted.length - kept) + " of " +
+			       sorted.length + " runs as outliers");
+	}
+
+	// if every run was discarded, there is nothing better to report
+	if (kept == 0)
+	    return samples;
+
+	return Arrays.copyOf(sorted, kept);
+    }
+
+    /**
+     * Print the median, minimum and maximum of the specified samples.
+     */
+    private void report(String name, double[] samples, String units) {
+	double[] sorted = samples.clone();
+	Arrays.sort(sorted);
+
+	System.out.println("benchmark " + name + ": " +
+			   format(sorted[sorted.length/2]) + " " + units +
+			   " (min " + format(sorted[0]) +
+			   ", max " + format(sorted[sorted.length-1]) + ")");
+    }
+
+    private static String format(double value) {
+	return String.format(value < 100 ? "%.1f" : "%.0f", value);
+    }
+
+    public void runningThread(KThread thread) {
+	super.runningThread(thread);
+	switches++;
+    }
+
+    public void runProcessor(Privilege privilege) {
+	super.runProcessor(privilege);
+
+	if (faultPages) {
+	    int sp = Machine.processor().readRegister(Processor.regSP);
+
+	    faultVpns[0] = Processor.pageFromAddress(sp-4);
+	    faultVpns[1] = Processor.pageFromAddress(sp-4-Processor.pageSize);
+	    invalidatePage(faultVpns[0]);
+	    invalidatePage(faultVpns[1]);
+	}
+
+	startInstructions = privilege.stats.userTicks / Stats.UserTick;
+	startTime = System.nanoTime();
+    }
+
+    public boolean exceptionHandler(Privilege privilege) {
+	super.exceptionHandler(privilege);
+
+	Processor processor = Machine.processor();
+	int cause = processor.readRegister(Processor.regCause);
+
+	if (cause == Processor.exceptionSyscall) {
+	    int call = processor.readRegister(Processor.regV0);
+
+	    if (call == syscallHalt || call == syscallExit) {
+		endTime = System.nanoTime();
+		endInstructions = privilege.stats.userTicks / Stats.UserTick;
+
+		// the kernel never sees this exit, so release the executable,
+		// and close any files the program left open (cp.coff never
+		// closes the descriptor that creat() returns)
+		executable.close();
+		executable = null;
+
+		for (int fd=2; fd<maxFileDescriptors; fd++)
+		    process.handleSyscall(syscallClose, fd, 0, 0, 0);
+
+		programDone.V();
+		KThread.finish();
+		Lib.assertNotReached();
+	    }
+
+	    if (call == syscallClose || call == syscallWrite) {
+		traps++;
+		if (countAllocations && threadBean != null)
+		    countAllocation();
+	    }
+	    return true;
+	}
+
+	// the kernel makes the faulting page valid again, so invalidate the
+	// other one for the next load to fault on
+	if (cause == Processor.exceptionPageFault && faultPages) {
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+
+	    if (vpn == faultVpns[0] || vpn == faultVpns[1]) {
+		traps++;
+		if (countAllocations && threadBean != null)
+		    countAllocation();
+		invalidatePage(vpn == faultVpns[0] ? faultVpns[1] : faultVpns[0]);
+	    }
+	}
+
+	return true;
+    }
+
+    public Coff createLoader(OpenFile file) {
+	executable = file;
+
+	if (generatedCode == null)
+	    return null;
+
+	Coff coff = new GeneratedCoff(generatedCode);
+	generatedCode = null;
+	return coff;
+    }
+
+    /**
+     * A one-page executable whose text is generated rather than read from a
+     * file.
+     */
+    private static class GeneratedCoff extends Coff {
+	GeneratedCoff(final int[] code) {
+	    Lib.assertTrue(code.length*4 <= Processor.pageSize);
+
+	    entryPoint = 0;
+	    sections = new CoffSection[] {
+		new CoffSection(this, ".text", true, true, 1, 0) {
+		    public void loadPage(int spn, int ppn) {
+			byte[] memory = Machine.processor().getMemory();
+			int paddr = ppn*Processor.pageSize;
+
+			Arrays.fill(memory, paddr, paddr+Processor.pageSize,
+				    (byte) 0);
+			for (int i=0; i<code.length; i++)
+			    Lib.bytesFromInt(memory, paddr + i*4, code[i]);
+		    }
+		}
+	    };
+	}
+    }
+
+    /**
+     * An open file that discards what is written to it, so that the write
+     * benchmark times the system call rather than a file system.
+     */
+    private static class DiscardingFile extends OpenFile {
+	DiscardingFile(FileSystem fileSystem) {
+	    super(fileSystem, discardFile);
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    return 0;
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    return length;
+	}
+    }
+
+    /** The words in each batch of the channel benchmark. */
+    private static final int channelBatch = 64;
+    /** The ticks each alarm benchmark operation waits for. */
+    private static final long alarmWait = 100;
+
+    private static final String defaultPrograms =
+	"sort.coff:cp.coff:echo.coff";
+    /** The file that <tt>cp.coff</tt> copies itself to. */
+    private static final String scratchFile = "benchmark.tmp";
+    private static final String[] echoArguments = {
+	"echo.coff", "the", "quick", "brown", "fox", "jumps", "over", "the",
+	"lazy", "dog", "while", "the", "benchmark", "counts", "instructions"
+    };
+
+    private static final int
+	syscallHalt = 0,
+	syscallExit = 1,
+	syscallCreate = 4,
+	syscallWrite = 7,
+	syscallClose = 8;
+
+    /** The number of file descriptors a process can have open. */
+    private static final int maxFileDescriptors = 16;
+
+    /** Where the generated programs keep their data, within their code page. */
+    private static final int dataAddress = Processor.pageSize/2;
+    /** The file that the write benchmark writes to. */
+    private static final String discardFile = "benchmark.discard";
+    /** The bytes written by each write benchmark system call. */
+    private static final int writeSize = 64;
+
+    private String[] programs;
+    private int warmup, runs, iterations;
+
+    private UserProcess process;
+    private Semaphore programDone;
+    private int[] generatedCode = null;
+    private OpenFile executable = null;
+
+    private long startTime, endTime;
+    private long startInstructions, endInstructions;
+    private long switches = 0, traps = 0;
+    /** Whether the page fault benchmark is running. */
+    private boolean faultPages = false;
+    /** The two stack pages that the page fault benchmark loads from. */
+    private int[] faultVpns = new int[2];
+
+    private com.sun.management.ThreadMXBean threadBean = null;
+    private long allocationOverhead = 0;
+    private boolean countAllocations = false;
+    private long runTraps, lastAllocated, lastSwitches, nextInterrupt;
+    private long trapAllocations, checkedTraps;
+}
@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.util.Arrays;
 
 /**
  * A COFF (common object file format) loader.
@@ -89,7 +90,146 @@ public class Coff {
 		    throw e;
 		}
 	    }
+
+	    // reading the symbol table takes time, so only do it if needed
+	    if (Machine.processor() != null &&
+		Machine.processor().isProfiling())
+		loadProcedures(Lib.bytesToInt(headers, 8),
+			       Lib.bytesToInt(headers, 12));
+	}
+    }
+
+    /**
+     * Load the names and addresses of the procedures in the executable from
+     * its symbol table. The test programs are linked with MIPS ECOFF symbol
+     * tables, which begin with a 96-byte symbolic header. Leaves no
+     * procedures if the executable has no usable symbol table.
+     *
+     * @param	offset	the offset of the symbolic header in the file.
+     * @param	length	the length of the symbolic header.
+     */
+    private void loadProcedures(int offset, int length) {
+	if (offset <= 0 || length != symbolicHeaderLength ||
+	    offset + length > file.length())
+	    return;
+
+	byte[] header = new byte[symbolicHeaderLength];
+	Lib.strictReadFile(file, offset, header, 0, header.length);
+
+	if (Lib.bytesToUnsignedShort(header, 0) != 0x7009) {
+	    Lib.debug(dbgCoff, "\tbad symbolic header");
+	    return;
+	}
+
+	int numSymbols = Lib.bytesToInt(header, 32);
+	int symbolOffset = Lib.bytesToInt(header, 36);
+	int stringsLength = Lib.bytesToInt(header, 56);
+	int stringsOffset = Lib.bytesToInt(header, 60);
+	int numFiles = Lib.bytesToInt(header, 72);
+	int fileOffset = Lib.bytesToInt(header, 76);
+
+	byte[] files = readSymbolTable(fileOffset, numFiles*72);
+	byte[] symbols = readSymbolTable(symbolOffset, numSymbols*12);
+	byte[] strings = readSymbolTable(stringsOffset, stringsLength);
+	if (files == null || symbols == null || strings == null) {
+	    Lib.debug(dbgCoff, "\tbad symbol table");
+	    return;
+	}
+
+	int[] addresses = new int[numSymbols];
+	String[] names = new String[numSymbols];
+	int numProcedures = 0;
+
+	for (int f=0; f<numFiles; f++) {
+	    int stringBase = Lib.bytesToInt(files, f*72 + 8);
+	    int symbolBase = Lib.bytesToInt(files, f*72 + 16);
+	    int fileSymbols = Lib.bytesToInt(files, f*72 + 20);
+
+	    for (int i=symbolBase; i<symbolBase+fileSymbols; i++) {
+		if (i < 0 || i >= numSymbols)
+		    break;
+		
+		int name = stringBase + Lib.bytesToInt(symbols, i*12);
+		int value = Lib.bytesToInt(symbols, i*12 + 4);
+		int type = symbols[i*12 + 8] & 0x3F;
+
+		if ((type != stProc && type != stStaticProc) ||
+		    name < 0 || name >= strings.length)
+		    continue;
+
+		int end = name;
+		while (end < strings.length && strings[end] != 0)
+		    end++;
+
+		addresses[numProcedures] = value;
+		names[numProcedures] = new String(strings, name, end-name);
+		numProcedures++;
+	    }
+	}
+
+	// sort by address, so getProcedureName() can binary search
+	long[] order = new long[numProcedures];
+	for (int i=0; i<numProcedures; i++)
+	    order[i] = ((long) addresses[i] << 32) | i;
+	Arrays.sort(order);
+
+	procedureAddresses = new int[numProcedures];
+	procedureNames = new String[numProcedures];
+	for (int i=0; i<numProcedures; i++) {
+	    int index = (int) order[i];
+	    procedureAddresses[i] = addresses[index];
+	    procedureNames[i] = names[index];
+	}
+
+	Lib.debug(dbgCoff, "\tloaded " + numProcedures + " procedures");
+    }
+
+    private byte[] readSymbolTable(int offset, int length) {
+	if (offset < 0 || length < 0 || offset + length > file.length())
+	    return null;
+
+	byte[] data = new byte[length];
+	if (length > 0)
+	    Lib.strictReadFile(file, offset, data, 0, length);
+	return data;
+    }
+
+    /**
+     * Return the name of the procedure containing the specified address,
+     * according to the executable's symbol table. Symbols are only loaded
+     * when the processor is profiling.
+     *
+     * @param	vaddr	the virtual address of an instruction.
+     * @return	the name of the procedure, or <tt>null</tt> if it is not
+     *		known.
+     */
+    public String getProcedureName(int vaddr) {
+	if (procedureAddresses == null)
+	    return null;
+
+	int low = 0, high = procedureAddresses.length-1, found = -1;
+	while (low <= high) {
+	    int middle = (low + high) / 2;
+	    if (procedureAddresses[middle] <= vaddr) {
+		found = middle;
+		low = middle+1;
+	    }
+	    else {
+		high = middle-1;
+	    }
 	}
+
+	return (found >= 0) ? procedureNames[found] : null;
+    }
+
+    /**
+     * Return the name of the file containing the executable.
+     *
+     * @return	the name of the executable file, or <tt>null</tt> if it was
+     *		not loaded from a file.
+     */
+    public String getName() {
+	return (file != null) ? file.getName() : null;
     }
 
     /**
@@ -144,8 +284,17 @@ public class Coff {
     /** The sections in this COFF executable. */
     protected CoffSection sections[];
 
+    /** The start addresses of the procedures in the executable, in order. */
+    private int[] procedureAddresses = null;
+    /** The names of the procedures in <tt>procedureAddresses</tt>. */
+    private String[] procedureNames = null;
+
     private static final int headerLength = 20;
     private static final int aoutHeaderLength = 28;
+    private static final int symbolicHeaderLength = 96;
+
+    /** ECOFF symbol types for global and static procedures. */
+    private static final int stProc = 6, stStaticProc = 14;
 
     private static final char dbgCoff = 'c';
 }
@@ -200,6 +200,9 @@ public class CoffSection {
 	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
 
 	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+
+	Machine.processor().invalidateDecodedPage(ppn);
+	Machine.processor().profilePage(ppn, coff, firstVPN+spn);
     }
 
     /** The COFF object to which this section belongs. */
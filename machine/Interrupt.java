@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,9 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[initialCapacity];
+	numPending = 0;
+	freeList = null;
     }
 
     /**
@@ -120,20 +120,131 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time to the next pending interrupt and invoke the
+     * handlers that are then due. The idle thread calls this when no other
+     * thread is ready to run, since until the next interrupt nothing could
+     * make one ready; ticking through that time one interrupt enable at a
+     * time would only cost host CPU. The skipped time is counted as idle
+     * time, not kernel time. Interrupts must be enabled.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled);
+
+	Stats stats = privilege.stats;
+
+	enabled = false;
+	if (numPending > 0) {
+	    // leave one kernel tick, taken when interrupts are reenabled
+	    long skipped = pending[0].time - Stats.KernelTick - stats.totalTicks;
+	    if (skipped > 0) {
+		if (traceInt)
+		    System.out.println("Idle until time = " +
+				       (stats.totalTicks + skipped +
+					Stats.KernelTick));
+
+		stats.idleTicks += skipped;
+		stats.totalTicks += skipped;
+	    }
+	}
+	setStatus(true);
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = allocate(time, type, handler);
+
+	if (traceInt)
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
+
+	add(toOccur);
+    }
+
+    /**
+     * Take a pending interrupt node from the free list, or allocate one if
+     * the list is empty. Devices reschedule themselves continually, so after
+     * the first few interrupts no more nodes are allocated.
+     */
+    private PendingInterrupt allocate(long time, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur == null)
+	    toOccur = new PendingInterrupt();
+	else
+	    freeList = toOccur.nextFree;
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.nextFree = null;
+
+	return toOccur;
+    }
+
+    /**
+     * Return a node to the free list once its handler has been removed from
+     * the pending heap.
+     */
+    private void free(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.nextFree = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add an interrupt to the pending heap, sifting it up past every
+     * interrupt that is due later.
+     */
+    private void add(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, numPending*2);
+
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!toOccur.before(pending[parent]))
+		break;
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+	pending[i] = toOccur;
+    }
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+    /**
+     * Remove and return the interrupt due first. The caller must check that
+     * one is pending.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending > 0) {
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numPending)
+		    break;
+		if (child+1 < numPending &&
+		    pending[child+1].before(pending[child]))
+		    child++;
+		if (!pending[child].before(last))
+		    break;
+		pending[i] = pending[child];
+		i = child;
+	    }
+	    pending[i] = last;
+	}
 
-	pending.add(toOccur);
+	return first;
     }
 
-    private void tick(boolean inKernelMode) {
+    private boolean tick(boolean inKernelMode) {
 	Stats stats = privilege.stats;
 
 	if (inKernelMode) {
@@ -145,46 +256,74 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
-	if (Lib.test(dbgInt))
+	if (traceInt)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
-	checkIfDue();
+	boolean invoked = checkIfDue();
 	enabled = true;
+
+	return invoked;
+    }
+
+    /**
+     * Return the number of user instructions that can execute before an
+     * interrupt is due. Every user tick before then only advances the time,
+     * so the processor may account for them in bulk. Always returns 1 when
+     * interrupt debugging is enabled, since every tick is then printed.
+     */
+    private long ticksUntilNextInterrupt() {
+	if (traceInt)
+	    return 1;
+
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	long ticks = pending[0].time - privilege.stats.totalTicks;
+
+	return Math.max(1, (ticks + Stats.UserTick-1) / Stats.UserTick);
     }
 
-    private void checkIfDue() {
+    private boolean checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (traceInt)
 	    print();
 
-	if (pending.isEmpty())
-	    return;
+	if (numPending == 0)
+	    return false;
 
-	if (((PendingInterrupt) pending.first()).time > time)
-	    return;
+	if (pending[0].time > time)
+	    return false;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (traceInt)
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && pending[0].time <= time) {
+	    PendingInterrupt next = removeFirst();
 
 	    Lib.assertTrue(next.time <= time);
 
+	    // the handler may schedule another interrupt, reusing this node
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    free(next);
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (traceInt)
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
-	Lib.debug(dbgInt, "  (end of list)");
+	if (traceInt)
+	    System.out.println("  (end of list)");
+
+	return true;
     }
 
     private void print() {
@@ -192,8 +331,10 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+
+	for (PendingInterrupt toOccur : sorted) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,17 +342,19 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    private static class PendingInterrupt
+	implements Comparable<PendingInterrupt> {
+	/**
+	 * Tests whether this interrupt is due before another: earlier times
+	 * first, and interrupts scheduled for the same time in the order they
+	 * were scheduled.
+	 */
+	boolean before(PendingInterrupt toOccur) {
+	    return time < toOccur.time ||
+		(time == toOccur.time && id < toOccur.id);
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
+	public int compareTo(PendingInterrupt toOccur) {
 	    // can't return 0 for unequal objects, so check all fields
 	    if (time < toOccur.time)
 		return -1;
@@ -230,6 +373,7 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,17 +381,36 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /**
+     * Pending interrupts, as a binary min-heap ordered by time and then by
+     * scheduling order. Only the first <tt>numPending</tt> entries are used.
+     */
+    private PendingInterrupt[] pending;
+    private int numPending;
+    /** Nodes of interrupts that have been handled, ready for reuse. */
+    private PendingInterrupt freeList;
+
+    private static final int initialCapacity = 16;
 
     private static final char dbgInt = 'i';
+    /**
+     * Whether interrupt tracing is enabled. The debug flags are fixed by
+     * <tt>Machine.processArgs()</tt> before any device is created, so the
+     * test is made once here instead of on every tick.
+     */
+    private static final boolean traceInt = Lib.test(dbgInt);
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 	public void schedule(long when, String type, Runnable handler) {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
-	public void tick(boolean inKernelMode) {
-	    Interrupt.this.tick(inKernelMode);
+	public boolean tick(boolean inKernelMode) {
+	    return Interrupt.this.tick(inKernelMode);
+	}
+
+	public long ticksUntilNextInterrupt() {
+	    return Interrupt.this.ticksUntilNextInterrupt();
 	}
     }
 }
@@ -145,7 +145,9 @@ public final class Lib {
     }
 
     /**
-     * Enable all the debug flags in <i>flagsString</i>.
+     * Enable all the debug flags in <i>flagsString</i>. The processor,
+     * interrupt controller and thread tracing test their flags once when
+     * their classes are loaded, so they only see flags enabled before then.
      *
      * @param	flagsString	the flags to enable.
      */
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.ArrayList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -97,9 +98,23 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	if (processor != null)
+	    processor.printProfile();
+	for (Runnable report : haltReports)
+	    report.run();
 	terminate();
     }
 
+    /**
+     * Add a report for <tt>halt()</tt> to print after the stats. Reports are
+     * printed in the order they were added.
+     *
+     * @param	report	prints the report when run.
+     */
+    public static void addHaltReport(Runnable report) {
+	haltReports.add(report);
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -409,6 +424,8 @@ public final class Machine {
     private static String[] args = null;
 
     private static Stats stats = new Stats();
+    private static ArrayList<Runnable> haltReports =
+	new ArrayList<Runnable>();
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
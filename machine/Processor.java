@@ -4,6 +4,15 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,6 +55,22 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	memory = ByteBuffer.wrap(mainMemory).order(ByteOrder.LITTLE_ENDIAN);
+	decodedPages = new Decoded[numPhysPages][];
+
+	jit = Config.getBoolean("Processor.jit", false);
+	if (jit) {
+	    jitThreshold = Config.getInteger("Processor.jitThreshold", 50);
+	    jitVerify = Config.getBoolean("Processor.jitVerify", false);
+	    blockPages = new Block[numPhysPages][];
+	    blockCounts = new int[numPhysPages][];
+	}
+
+	if (Config.getBoolean("Processor.profile", false)) {
+	    profileCounts = new long[numPhysPages][];
+	    profileCoffs = new Coff[numPhysPages];
+	    profileVPNs = new int[numPhysPages];
+	}
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -85,15 +110,35 @@ public final class Processor {
      * Start executing instructions at the current PC. Never returns.
      */
     public void run() {
-	Lib.debug(dbgProcessor, "starting program in current thread");
+	if (traceProcessor)
+	    System.out.println("starting program in current thread");
 
 	registers[regNextPC] = registers[regPC] + 4;
 
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	// make the first instruction's tick ask when the next interrupt is due
+	ticksUntilInterrupt = 0;
+
+	// tracing prints every fetch, so it always uses the interpreter
+	boolean useBlocks = jit && !traceProcessor &&
+	    !traceDisassemble && !traceFullDisassemble;
+
+	// the kernel has just loaded the program
+	kernelRuns++;
 	
 	while (true) {
+	    Block block = useBlocks ? hotBlock() : null;
+	    if (block != null) {
+		if (jitVerify)
+		    verifyBlock(block, inst);
+		else
+		    runBlock(block);
+		continue;
+	    }
+	    
 	    try {
 		inst.run();
 	    }
@@ -101,10 +146,585 @@ public final class Processor {
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    tick();
+	}
+    }
+
+    /**
+     * Advance the simulated time after a user instruction. Equivalent to
+     * <tt>privilege.interrupt.tick(false)</tt>, except that ticks after which
+     * no interrupt can be due are only counted in <tt>deferredTicks</tt>, and
+     * are added to the statistics in bulk by <tt>updateStats()</tt>.
+     *
+     * @return	<tt>true</tt> if any interrupt handlers were invoked.
+     */
+    private boolean tick() {
+	if (--ticksUntilInterrupt > 0) {
+	    deferredTicks += Stats.UserTick;
+	    return false;
+	}
+
+	updateStats();
+	boolean invoked = privilege.interrupt.tick(false);
+	ticksUntilInterrupt = privilege.interrupt.ticksUntilNextInterrupt();
+
+	// the handlers may have changed the address translation state
+	if (invoked) {
+	    flushTranslationCaches();
+	    kernelRuns++;
+	}
+
+	return invoked;
+    }
+
+    /**
+     * Bring the statistics up to date, adding any deferred user ticks. Must
+     * be called before any kernel code runs, since the kernel may read the
+     * time or schedule interrupts relative to it.
+     */
+    private void updateStats() {
+	Stats stats = privilege.stats;
+	
+	if (deferredTicks != 0) {
+	    stats.userTicks += deferredTicks;
+	    stats.totalTicks += deferredTicks;
+	    deferredTicks = 0;
+	}
+
+	stats.numFetchTranslations = fetchCache.lookups;
+	stats.numFetchTranslationHits = fetchCache.hits;
+	stats.numDataTranslations = dataCache.lookups;
+	stats.numDataTranslationHits = dataCache.hits;
+    }
+
+    /**
+     * Return the compiled block starting at the current PC, or <tt>null</tt>
+     * if the next instruction should be interpreted. A block is only
+     * compiled once execution has reached its first instruction
+     * <tt>jitThreshold</tt> times, so code that only runs a few times is
+     * left to the interpreter.
+     *
+     * <p>
+     * The PC is only looked up if its page is in the fetch cache, so that
+     * finding the block costs no translation of its own. A block is checked
+     * against memory the first time it is entered after kernel code has run,
+     * since the kernel can write to memory through <tt>getMemory()</tt>;
+     * stores made by the program drop the blocks of their page instead.
+     *
+     * @return	the block to run, or <tt>null</tt>.
+     */
+    private Block hotBlock() {
+	int vaddr = registers[regPC];
+
+	// a block runs its instructions in order, so it cannot start in a
+	// delay slot
+	if (registers[regNextPC] != vaddr+4 || (vaddr & 0x3) != 0)
+	    return null;
+
+	TranslationEntry entry = fetchCache.lookup(pageFromAddress(vaddr));
+	if (entry == null)
+	    return null;
+
+	int ppn = entry.ppn;
+	int index = offsetFromAddress(vaddr) / 4;
+
+	Block[] blocks = blockPages[ppn];
+	if (blocks == null) {
+	    blocks = new Block[pageSize/4];
+	    blockPages[ppn] = blocks;
+	}
+
+	Block block = blocks[index];
+	if (block == null) {
+	    int[] counts = blockCounts[ppn];
+	    if (counts == null) {
+		counts = new int[pageSize/4];
+		blockCounts[ppn] = counts;
+	    }
+
+	    if (++counts[index] < jitThreshold)
+		return null;
+	    counts[index] = 0;
+
+	    int length = decodeBlock(ppn*pageSize + index*4);
+	    if (length == 0)
+		return null;
+
+	    block = new Block(ppn*pageSize + index*4);
+	    block.compile(blockCode, length);
+	    blocks[index] = block;
+	    privilege.stats.numBlocksCompiled++;
+	}
+	else if (block.checkedAt != kernelRuns && !block.matches(memory)) {
+	    // the code here has changed, such as when another program was
+	    // loaded into the page, but code here ran often enough to be
+	    // compiled, so it is compiled again now, into the same block
+	    int length = decodeBlock(block.paddr);
+	    if (length == 0) {
+		blocks[index] = null;
+		return null;
+	    }
+
+	    block.compile(blockCode, length);
+	    privilege.stats.numBlocksCompiled++;
+	}
+
+	block.checkedAt = kernelRuns;
+	return block;
+    }
+
+    /**
+     * Decode the basic block starting at the specified physical address into
+     * <tt>blockCode</tt>. A block ends after the delay slot of the first
+     * branch or jump, before the first instruction that blocks do not run
+     * (<tt>syscall</tt> and the unaligned loads and stores, which the
+     * interpreter runs), or at the end of the page.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the number of instructions in the block, which is 0 if
+     *		blocks do not run the first one.
+     */
+    private int decodeBlock(int paddr) {
+	int pageEnd = (paddr/pageSize + 1) * pageSize;
+	Decoded[] code = blockCode;
+	int length = 0;
+
+	for (int p=paddr; p<pageEnd && length<maxBlockLength; p+=4) {
+	    Decoded decoded = decodedAt(p, memory.getInt(p));
+	    if (Block.kind(decoded) < 0)
+		break;
+
+	    code[length++] = decoded;
+
+	    // include the delay slot, if it is on this page
+	    if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		if (p+4 < pageEnd) {
+		    Decoded slot = decodedAt(p+4, memory.getInt(p+4));
+		    if (Block.kind(slot) >= 0)
+			code[length++] = slot;
+		}
+		break;
+	    }
+	}
+
+	return length;
+    }
+
+    /**
+     * Run a compiled block from its first instruction, which is at the
+     * current PC, until it ends, an exception is raised, an interrupt
+     * handler runs, or the program stores into the block's page. The PC and
+     * next PC are kept in locals and only written back when the block stops
+     * or before a tick that may run an interrupt handler, and if no
+     * interrupt can be due before the block ends, its ticks are counted all
+     * at once. Otherwise each instruction has exactly the effect it has in
+     * the interpreter, including the load delay slot.
+     *
+     * @param	block	the block to run.
+     * @return	the number of instructions the block completed.
+     */
+    private int runBlock(Block block) {
+	int[] r = registers;
+	int vaddr = r[regPC];
+	int pc = vaddr, nextPC = r[regNextPC];
+	int ppn = block.paddr / pageSize;
+	Block[] blocks = blockPages[ppn];
+	boolean batch = ticksUntilInterrupt > block.length;
+	int i = 0;
+
+	try {
+	    translate(vaddr, 4, false, fetchCache);
+
+	    while (i < block.length) {
+		int s = block.rs[i], t = block.rt[i], d = block.dst[i];
+		int imm = block.imm[i];
+		int next = nextPC + 4;
+		int result = 0;
+		boolean load = false;
+
+		if (profileCounts != null)
+		    profile(block.paddr + i*4);
+
+		switch (block.kinds[i]) {
+		case Block.ADDU:
+		    result = r[s] + r[t];
+		    break;
+		case Block.ADDIU:
+		    result = r[s] + imm;
+		    break;
+		case Block.ADD:
+		    result = addChecked((long) r[s] + r[t]);
+		    break;
+		case Block.ADDI:
+		    result = addChecked((long) r[s] + imm);
+		    break;
+		case Block.SUBU:
+		    result = r[s] - r[t];
+		    break;
+		case Block.SUB:
+		    result = addChecked((long) r[s] - r[t]);
+		    break;
+
+		case Block.AND:
+		    result = r[s] & r[t];
+		    break;
+		case Block.ANDI:
+		    result = r[s] & imm;
+		    break;
+		case Block.OR:
+		    result = r[s] | r[t];
+		    break;
+		case Block.ORI:
+		    result = r[s] | imm;
+		    break;
+		case Block.XOR:
+		    result = r[s] ^ r[t];
+		    break;
+		case Block.XORI:
+		    result = r[s] ^ imm;
+		    break;
+		case Block.NOR:
+		    result = ~(r[s] | r[t]);
+		    break;
+		case Block.LUI:
+		    result = imm;
+		    break;
+
+		case Block.SLT:
+		    result = (r[s] < r[t]) ? 1 : 0;
+		    break;
+		case Block.SLTI:
+		    result = (r[s] < imm) ? 1 : 0;
+		    break;
+		case Block.SLTU:
+		    result = ((r[s] & 0xFFFFFFFFL) < (r[t] & 0xFFFFFFFFL)) ? 1 : 0;
+		    break;
+		case Block.SLTIU:
+		    result = ((r[s] & 0xFFFFFFFFL) < imm) ? 1 : 0;
+		    break;
+
+		// the interpreter shifts the sign-extended register, so its
+		// logical right shift keeps the sign bit
+		case Block.SLL:
+		    result = r[t] << imm;
+		    break;
+		case Block.SRL:
+		    result = (int) ((long) r[t] >>> imm);
+		    break;
+		case Block.SRA:
+		    result = r[t] >> imm;
+		    break;
+		case Block.SLLV:
+		    result = r[t] << (r[s] & 0x1F);
+		    break;
+		case Block.SRLV:
+		    result = (int) ((long) r[t] >>> (r[s] & 0x1F));
+		    break;
+		case Block.SRAV:
+		    result = r[t] >> (r[s] & 0x1F);
+		    break;
+
+		case Block.MULT:
+		    multiply((long) r[s] * r[t]);
+		    break;
+		case Block.MULTU:
+		    multiply((r[s] & 0xFFFFFFFFL) * (r[t] & 0xFFFFFFFFL));
+		    break;
+		case Block.DIV:
+		    divide(r[s], r[t]);
+		    break;
+		case Block.DIVU:
+		    divide(r[s] & 0xFFFFFFFFL, r[t] & 0xFFFFFFFFL);
+		    break;
+		case Block.MFHI:
+		    result = r[regHi];
+		    break;
+		case Block.MFLO:
+		    result = r[regLo];
+		    break;
+		case Block.MTHI:
+		    r[regHi] = r[s];
+		    break;
+		case Block.MTLO:
+		    r[regLo] = r[s];
+		    break;
+
+		// unsigned loads read sign-extended bytes and halfwords, as in
+		// the interpreter
+		case Block.LB:
+		    result = readMem(r[s] + imm, 1);
+		    load = true;
+		    break;
+		case Block.LH:
+		    result = readMem(r[s] + imm, 2);
+		    load = true;
+		    break;
+		case Block.LW:
+		    result = readMem(r[s] + imm, 4);
+		    load = true;
+		    break;
+		case Block.SB:
+		    writeMem(r[s] + imm, 1, r[t]);
+		    break;
+		case Block.SH:
+		    writeMem(r[s] + imm, 2, r[t]);
+		    break;
+		case Block.SW:
+		    writeMem(r[s] + imm, 4, r[t]);
+		    break;
+
+		case Block.BEQ:
+		    if (r[s] == r[t])
+			next = nextPC + imm;
+		    break;
+		case Block.BNE:
+		    if (r[s] != r[t])
+			next = nextPC + imm;
+		    break;
+		case Block.BLEZ:
+		    if (r[s] <= 0)
+			next = nextPC + imm;
+		    break;
+		case Block.BGTZ:
+		    if (r[s] > 0)
+			next = nextPC + imm;
+		    break;
+		case Block.BLTZ:
+		    if (r[s] < 0)
+			next = nextPC + imm;
+		    break;
+		case Block.BGEZ:
+		    if (r[s] >= 0)
+			next = nextPC + imm;
+		    break;
+		case Block.BLTZAL:
+		    result = next;
+		    if (r[s] < 0)
+			next = nextPC + imm;
+		    break;
+		case Block.BGEZAL:
+		    result = next;
+		    if (r[s] >= 0)
+			next = nextPC + imm;
+		    break;
+		case Block.J:
+		    next = (nextPC & 0xF0000000) | imm;
+		    break;
+		case Block.JAL:
+		    result = next;
+		    next = (nextPC & 0xF0000000) | imm;
+		    break;
+		case Block.JR:
+		    next = r[s];
+		    break;
+		case Block.JALR:
+		    result = next;
+		    next = r[s];
+		    break;
+
+		default:
+		    Lib.assertNotReached();
+		}
+
+		// complete the load in progress before this instruction's own
+		// result is written
+		if (load) {
+		    delayedLoad(d, result, 0xFFFFFFFF);
+		}
+		else {
+		    if (loadTarget != 0)
+			finishLoad();
+		    if (d > 0)
+			r[d] = result;
+		}
+
+		pc = nextPC;
+		nextPC = next;
+		i++;
+
+		// an interrupt handler may switch to another thread, which
+		// loads its own registers, so they are written back first
+		if (!batch) {
+		    r[regPC] = pc;
+		    r[regNextPC] = nextPC;
+		    if (tick()) {
+			blockDone(i);
+			return i;
+		    }
+		}
+
+		// leave after a taken branch's delay slot, or after a store
+		// into this page, which drops its blocks
+		if (pc != vaddr + i*4 || blockPages[ppn] != blocks)
+		    break;
+	    }
+	}
+	catch (MipsException e) {
+	    r[regPC] = pc;
+	    r[regNextPC] = nextPC;
+	    if (batch)
+		deferTicks(i);
+	    blockDone(i);
+
+	    e.handle();
+	    tick();
+	    return i;
+	}
+
+	r[regPC] = pc;
+	r[regNextPC] = nextPC;
+	if (batch)
+	    deferTicks(i);
+	blockDone(i);
+
+	return i;
+    }
+
+    /**
+     * Count the ticks of the specified number of instructions, none of which
+     * can make an interrupt due, as <tt>tick()</tt> would have.
+     */
+    private void deferTicks(int numInstructions) {
+	ticksUntilInterrupt -= numInstructions;
+	deferredTicks += numInstructions * Stats.UserTick;
+    }
+
+    private void blockDone(int numInstructions) {
+	privilege.stats.numBlockRuns++;
+	privilege.stats.numBlockInstructions += numInstructions;
+    }
+
+    /**
+     * Return the result of a signed add or subtract, computed in 64 bits,
+     * raising an overflow exception if it does not fit in 32 bits.
+     */
+    private int addChecked(long result) throws MipsException {
+	if ((int) result != result)
+	    throw exception.raise(exceptionOverflow);
+
+	return (int) result;
+    }
+
+    /** Set the low and high registers to the two halves of a product. */
+    private void multiply(long product) {
+	registers[regLo] = (int) product;
+	registers[regHi] = (int) (product >> 32);
+    }
+
+    /**
+     * Set the low and high registers to the quotient and remainder, as the
+     * interpreter does, raising an overflow exception for a division by zero
+     * or a quotient that does not fit.
+     */
+    private void divide(long dividend, long divisor) throws MipsException {
+	try {
+	    registers[regLo] = (int) (dividend / divisor);
+	    registers[regHi] = (int) (dividend % divisor);
+	    if (registers[regLo]*divisor + registers[regHi] != dividend)
+		throw new ArithmeticException();
+	}
+	catch (ArithmeticException e) {
+	    throw exception.raise(exceptionOverflow);
 	}
     }
 
+    /**
+     * Run a compiled block, and then run the same number of instructions
+     * again in the interpreter, from a copy of the registers, load delay and
+     * memory taken before the block ran, and check that both left the same
+     * state. A block that raised an exception or let an interrupt handler
+     * run is not checked, since the kernel ran in between. Used when the
+     * <tt>Processor.jitVerify</tt> key is set.
+     *
+     * @param	block	the block to run.
+     * @param	inst	the instruction object the interpreter uses.
+     */
+    private void verifyBlock(Block block, Instruction inst) {
+	int vaddr = registers[regPC];
+	int[] registersBefore = registers.clone();
+	byte[] memoryBefore = mainMemory.clone();
+	int[] loadBefore = { loadTarget, loadValue, loadMask };
+	long runs = kernelRuns;
+
+	int numInstructions = runBlock(block);
+	if (kernelRuns != runs)
+	    return;
+
+	int[] registersAfter = registers.clone();
+	byte[] memoryAfter = mainMemory.clone();
+	int[] loadAfter = { loadTarget, loadValue, loadMask };
+
+	// the replay must not count as fetches, translations or profiled
+	// instructions
+	long[] cacheCounts = { fetchCache.lookups, fetchCache.hits,
+			       dataCache.lookups, dataCache.hits };
+	long[][] counts = profileCounts;
+	profileCounts = null;
+
+	System.arraycopy(registersBefore, 0, registers, 0, numUserRegisters);
+	System.arraycopy(memoryBefore, 0, mainMemory, 0, mainMemory.length);
+	loadTarget = loadBefore[0];
+	loadValue = loadBefore[1];
+	loadMask = loadBefore[2];
+
+	try {
+	    for (int i=0; i<numInstructions; i++)
+		inst.run();
+	}
+	catch (MipsException e) {
+	    Lib.assertNotReached("jit: block at 0x" + Lib.toHexString(vaddr) +
+				 " ran, but the interpreter raised " +
+				 exceptionNames[e.cause].trim());
+	}
+
+	profileCounts = counts;
+	fetchCache.lookups = cacheCounts[0];
+	fetchCache.hits = cacheCounts[1];
+	dataCache.lookups = cacheCounts[2];
+	dataCache.hits = cacheCounts[3];
+
+	int[] loadReplayed = { loadTarget, loadValue, loadMask };
+
+	Lib.assertTrue(Arrays.equals(registers, registersAfter) &&
+		       Arrays.equals(loadReplayed, loadAfter),
+		       "jit: block at 0x" + Lib.toHexString(vaddr) +
+		       " left different registers than the interpreter");
+	Lib.assertTrue(Arrays.equals(mainMemory, memoryAfter),
+		       "jit: block at 0x" + Lib.toHexString(vaddr) +
+		       " left different memory than the interpreter");
+    }
+
+    /**
+     * Return the decoding of the specified instruction word, which is stored
+     * at the specified physical address, using the decode cache if possible.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	value	the instruction word at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private Decoded decodedAt(int paddr, int value) {
+	int ppn = paddr / pageSize;
+	Decoded[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new Decoded[pageSize/4];
+	    decodedPages[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	Decoded decoded = page[index];
+
+	/* The kernel can modify main memory directly through getMemory(),
+	 * so a cached decoding is only used if it was made from the word
+	 * that is in memory now.
+	 */
+	if (decoded == null || decoded.value != value) {
+	    decoded = new Decoded(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +795,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushTranslationCaches();
     }
 
     /**
@@ -216,6 +837,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	flushTranslationCaches();
     }
 
     /**
@@ -279,6 +901,142 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Return <tt>true</tt> if this processor counts the instructions executed
+     * at each address (the <tt>Processor.profile</tt> key).
+     *
+     * @return	<tt>true</tt> if the processor is profiling.
+     */
+    boolean isProfiling() {
+	return profileCounts != null;
+    }
+
+    /**
+     * Note that the specified physical page now holds a page of the specified
+     * executable, so that instructions executed from it are charged to the
+     * executable's procedures. Instructions executed from the page before
+     * this are charged to its previous contents.
+     *
+     * @param	ppn	the physical page that was loaded.
+     * @param	coff	the executable loaded into the page.
+     * @param	vpn	the virtual page number of the page in the executable.
+     */
+    void profilePage(int ppn, Coff coff, int vpn) {
+	if (profileCounts == null)
+	    return;
+
+	flushProfile(ppn);
+	profileCoffs[ppn] = coff;
+	profileVPNs[ppn] = vpn;
+    }
+
+    private void profile(int paddr) {
+	int ppn = paddr / pageSize;
+	
+	long[] counts = profileCounts[ppn];
+	if (counts == null) {
+	    counts = new long[pageSize/4];
+	    profileCounts[ppn] = counts;
+	}
+
+	counts[(paddr % pageSize) / 4]++;
+    }
+
+    /**
+     * Add the instruction counts of the specified physical page to the
+     * totals of the procedures they belong to, and clear them.
+     */
+    private void flushProfile(int ppn) {
+	long[] counts = profileCounts[ppn];
+	if (counts == null)
+	    return;
+
+	Coff coff = profileCoffs[ppn];
+	String program = (coff != null) ? coff.getName() : null;
+	if (program == null)
+	    program = "?";
+
+	for (int i=0; i<counts.length; i++) {
+	    if (counts[i] == 0)
+		continue;
+
+	    String procedure = null;
+	    if (coff != null)
+		procedure =
+		    coff.getProcedureName(profileVPNs[ppn]*pageSize + i*4);
+	    if (procedure == null)
+		procedure = "?";
+
+	    String key = program + ":" + procedure;
+	    Long total = profileTotals.get(key);
+	    profileTotals.put(key, (total != null ? total : 0) + counts[i]);
+	}
+
+	profileCounts[ppn] = null;
+    }
+
+    /**
+     * Print the procedures in which user programs spent the most
+     * instructions, if the processor is profiling. Called by
+     * <tt>Machine.halt()</tt>.
+     */
+    void printProfile() {
+	if (profileCounts == null)
+	    return;
+
+	for (int ppn=0; ppn<numPhysPages; ppn++)
+	    flushProfile(ppn);
+
+	ArrayList<Map.Entry<String, Long>> entries =
+	    new ArrayList<Map.Entry<String, Long>>(profileTotals.entrySet());
+
+	long total = 0;
+	for (Map.Entry<String, Long> entry : entries)
+	    total += entry.getValue();
+
+	Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+		public int compare(Map.Entry<String, Long> a,
+				   Map.Entry<String, Long> b) {
+		    return b.getValue().compareTo(a.getValue());
+		}
+	    });
+
+	System.out.println("Profile: " + total + " instructions");
+	for (int i=0; i<entries.size() && i<profileLength; i++) {
+	    long count = entries.get(i).getValue();
+	    System.out.println(String.format("%12d %5.1f%%  %s", count,
+					     100.0 * count / total,
+					     entries.get(i).getKey()));
+	}
+    }
+
+    /**
+     * Discard the decoded instructions cached for the specified physical
+     * page. Called whenever the contents of the page may have changed. The
+     * page's compiled blocks are kept, since each is checked against memory
+     * before it next runs, and a program loaded again into the same page
+     * can then run them without compiling them again.
+     *
+     * @param	ppn	the physical page whose decoded instructions are stale.
+     */
+    void invalidateDecodedPage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+    }
+
+    /**
+     * Discard every translation in the processor's translation caches. Called
+     * whenever the page table or TLB may have changed: when either is set
+     * through this API, and after any kernel code (an exception or interrupt
+     * handler) has run, since kernel code can modify page table entries
+     * directly.
+     */
+    private void flushTranslationCaches() {
+	fetchCache.flush();
+	dataCache.flush();
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -286,22 +1044,30 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * If <i>cache</i> holds a translation for the virtual page, the page
+     * table or TLB is not consulted, though the entry's used and dirty bits
+     * are still set.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	cache	the translation cache to use, or <tt>null</tt>.
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private int translate(int vaddr, int size, boolean writing,
+			  TranslationCache cache)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
-	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    if (traceProcessor)
+		System.out.println("\t\talignment error");
+	    throw exception.raise(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -310,20 +1076,42 @@ public final class Processor {
 
 	TranslationEntry entry = null;
 
+	if (cache != null) {
+	    cache.lookups++;
+	    
+	    entry = cache.lookup(vpn);
+
+	    if (entry != null && !(entry.readOnly && writing)) {
+		cache.hits++;
+		
+		entry.used = true;
+		if (writing)
+		    entry.dirty = true;
+
+		int paddr = (entry.ppn*pageSize) + offset;
+
+		if (traceProcessor)
+		    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+		return paddr;
+	    }
+	}
+
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		if (traceProcessor)
+		    System.out.println("\t\tpage fault");
+		throw exception.raise(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
 	// else, look through all TLB entries for matching vpn
 	else {
+	    entry = null;
 	    for (int i=0; i<tlbSize; i++) {
 		if (translations[i].valid && translations[i].vpn == vpn) {
 		    entry = translations[i];
@@ -332,22 +1120,25 @@ public final class Processor {
 	    }
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		if (traceProcessor)
+		    System.out.println("\t\tTLB miss");
+		throw exception.raise(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    if (traceProcessor)
+		System.out.println("\t\tread-only exception");
+	    throw exception.raise(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    if (traceProcessor)
+		System.out.println("\t\tbad ppn");
+	    throw exception.raise(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -355,9 +1146,12 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
+	if (cache != null)
+	    cache.fill(vpn, entry);
+
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
@@ -372,16 +1166,27 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
-	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int paddr = translate(vaddr, size, false, dataCache);
+	int value;
+
+	switch (size) {
+	case 4:
+	    value = memory.getInt(paddr);
+	    break;
+	case 2:
+	    value = memory.getShort(paddr);
+	    break;
+	default:
+	    Lib.assertTrue(size==1);
+	    value = mainMemory[paddr];
+	    break;
+	}
 
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +1204,33 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
-	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true, dataCache);
+
+	// self-modifying code: drop any instructions decoded or compiled from
+	// this page
+	int ppn = paddr / pageSize;
+	if (decodedPages[ppn] != null)
+	    invalidateDecodedPage(ppn);
+	if (blockPages != null && blockPages[ppn] != null)
+	    blockPages[ppn] = null;
+
+	switch (size) {
+	case 4:
+	    memory.putInt(paddr, value);
+	    break;
+	case 2:
+	    memory.putShort(paddr, (short) value);
+	    break;
+	default:
+	    Lib.assertTrue(size==1);
+	    mainMemory[paddr] = (byte) value;
+	    break;
+	}
     }
 
     /**
@@ -526,6 +1349,15 @@ public final class Processor {
 
     /** Provides privilege to this processor. */
     private Privilege privilege;
+
+    /**
+     * The number of user instructions that can still execute before an
+     * interrupt may be due. Zero forces the next tick through the interrupt
+     * controller.
+     */
+    private long ticksUntilInterrupt = 0;
+    /** User ticks that have elapsed but not been added to the statistics. */
+    private long deferredTicks = 0;
     
     /** MIPS registers accessible to the kernel. */
     private int registers[] = new int[numUserRegisters];
@@ -547,6 +1379,11 @@ public final class Processor {
      */
     private TranslationEntry[] translations;
 
+    /** Recent translations used to fetch instructions. */
+    private TranslationCache fetchCache = new TranslationCache();
+    /** Recent translations used by loads and stores. */
+    private TranslationCache dataCache = new TranslationCache();
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
@@ -555,6 +1392,74 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * A little-endian view of <tt>mainMemory</tt>, used for halfword and word
+     * accesses. It shares the array returned by <tt>getMemory()</tt>, so
+     * kernel writes to that array are seen immediately.
+     */
+    private ByteBuffer memory;
+    /**
+     * Decoded instructions, indexed by physical page and then by word offset
+     * within the page. A page's array is allocated the first time code is
+     * fetched from it, and discarded when the page is written.
+     */
+    private Decoded[][] decodedPages;
+
+    /**
+     * <tt>true</tt> if frequently run code is run from compiled basic blocks
+     * (the <tt>Processor.jit</tt> key in <tt>nachos.conf</tt>).
+     */
+    private boolean jit;
+    /**
+     * The number of times execution must reach an address before a block is
+     * compiled there (the <tt>Processor.jitThreshold</tt> key).
+     */
+    private int jitThreshold;
+    /**
+     * <tt>true</tt> if every block run is checked against the interpreter
+     * (the <tt>Processor.jitVerify</tt> key).
+     */
+    private boolean jitVerify = false;
+    /**
+     * Compiled basic blocks, indexed like <tt>decodedPages</tt> by the
+     * physical address of their first instruction. <tt>null</tt> unless
+     * <tt>jit</tt> is set.
+     */
+    private Block[][] blockPages = null;
+    /**
+     * The number of times the interpreter has reached each address with no
+     * block, indexed like <tt>blockPages</tt>.
+     */
+    private int[][] blockCounts = null;
+    /**
+     * The number of times kernel code has run: exception handlers, interrupt
+     * handlers, and the loading of a program. A block is checked against
+     * memory when this has changed since it was last entered.
+     */
+    private long kernelRuns = 0;
+    /** The instructions of the block being compiled. */
+    private Decoded[] blockCode = new Decoded[Block.capacity];
+    /** The maximum number of instructions in a compiled block. */
+    private static final int maxBlockLength = 64;
+
+    /**
+     * Instructions executed at each word of physical memory, indexed by page
+     * and then by word. A page's array is allocated when an instruction is
+     * first fetched from it. <tt>null</tt> unless the
+     * <tt>Processor.profile</tt> key is set.
+     */
+    private long[][] profileCounts = null;
+    /** The executable loaded into each physical page, if known. */
+    private Coff[] profileCoffs;
+    /** The virtual page number of each physical page in its executable. */
+    private int[] profileVPNs;
+    /** Instructions executed in each procedure, from flushed pages. */
+    private HashMap<String, Long> profileTotals = new HashMap<String, Long>();
+    /** The number of procedures listed in the profile. */
+    private static final int profileLength = 20;
+
+    /** The exception raised by every user exception. */
+    private MipsException exception = new MipsException();
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -563,44 +1468,90 @@ public final class Processor {
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
 
+    /*
+     * The debug flags are fixed by Machine.processArgs() before any device is
+     * created, so they are tested once here. Without -d flags the tracing
+     * code in the fetch, translate and memory paths is then dead, and the
+     * JVM compiles it away instead of testing a flag on every access.
+     */
+    private static final boolean traceProcessor = Lib.test(dbgProcessor);
+    private static final boolean traceDisassemble = Lib.test(dbgDisassemble);
+    private static final boolean traceFullDisassemble =
+	Lib.test(dbgFullDisassemble);
+
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
 	}
     }
 
+    /**
+     * A processor exception. The processor raises the same instance every
+     * time, so that faults and syscalls do not allocate. This is safe because
+     * <tt>handle()</tt> copies the cause and bad address into the registers
+     * before the kernel runs and can switch to another thread.
+     */
     private class MipsException extends Exception {
-	public MipsException(int cause) {
+	/**
+	 * Prepare this exception to be thrown for the specified cause.
+	 *
+	 * @return	this exception.
+	 */
+	public MipsException raise(int cause) {
 	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
 	    this.cause = cause;
+	    hasBadVAddr = false;
+	    return this;
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	/**
+	 * Prepare this exception to be thrown for the specified cause, caused
+	 * by an access to <i>badVAddr</i>.
+	 *
+	 * @return	this exception.
+	 */
+	public MipsException raise(int cause, int badVAddr) {
+	    raise(cause);
 
 	    hasBadVAddr = true;
 	    this.badVAddr = badVAddr;
+	    return this;
+	}
+
+	/**
+	 * Do not record a stack trace, since the exception is never reported
+	 * outside the processor.
+	 */
+	public Throwable fillInStackTrace() {
+	    return this;
 	}
 
 	public void handle() {
+	    // the kernel is about to run, so bring the time up to date, and
+	    // have the next tick find out when the next interrupt is due
+	    updateStats();
+	    ticksUntilInterrupt = 0;
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble || traceFullDisassemble)
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    kernelRuns++;
 
 	    Lib.assertTrue(exceptionHandler != null);
 
 	    // autograder might not want kernel to know about this exception
-	    if (!Machine.autoGrader().exceptionHandler(privilege))
-		return;
-	    
-	    exceptionHandler.run();
+	    if (Machine.autoGrader().exceptionHandler(privilege))
+		exceptionHandler.run();
+
+	    // the kernel may have changed the address translation state
+	    flushTranslationCaches();
 	}
 
 	private boolean hasBadVAddr = false;
@@ -621,68 +1572,56 @@ public final class Processor {
 	}
 
 	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((traceDisassemble && !traceProcessor) ||
+		traceFullDisassemble)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    int vaddr = registers[regPC];
+	    
+	    if (traceProcessor)
+		System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=4");
+
+	    int paddr = translate(vaddr, 4, false, fetchCache);
+	    value = memory.getInt(paddr);
+
+	    if (profileCounts != null)
+		profile(paddr);
+
+	    if (traceProcessor)
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+
+	    decoded = decodedAt(paddr, value);
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    Decoded d = decoded;
+	    
+	    op = d.op;
+	    rs = d.rs;
+	    rt = d.rt;
+	    rd = d.rd;
+	    sh = d.sh;
+	    func = d.func;
+	    target = d.target;
+	    imm = d.imm;
+
+	    operation = d.operation;
+	    name = d.name;
+	    format = d.format;
+	    flags = d.flags;
+
+	    size = d.size;
+	    dstReg = d.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -693,11 +1632,6 @@ public final class Processor {
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -718,13 +1652,13 @@ public final class Processor {
 		src2 &= 0xFFFFFFFFL;
 	    }	    
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble || traceFullDisassemble)
 		print();	    
 	}
 
 	private void print() {
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble && traceProcessor &&
+		!traceFullDisassemble)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 	    
@@ -756,7 +1690,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 		    
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (traceFullDisassemble) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -768,7 +1702,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 
-		    if (Lib.test(dbgFullDisassemble) &&
+		    if (traceFullDisassemble &&
 			(i!=0 || !test(Mips.DST)) &&
 			!test(Mips.DELAYEDLOAD)) {
 			System.out.print("#0x" +
@@ -800,7 +1734,7 @@ public final class Processor {
 		    minCharsPrinted += 4;
 		    maxCharsPrinted += 5;
 
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (traceFullDisassemble) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -840,8 +1774,8 @@ public final class Processor {
 		}
 	    }
 
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble && traceProcessor &&
+		!traceFullDisassemble)
 		System.out.print("\n");
 	}
 
@@ -869,7 +1803,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw exception.raise(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +1873,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw exception.raise(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +1943,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw exception.raise(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +1953,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw exception.raise(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1033,7 +1967,7 @@ public final class Processor {
 		registers[dstReg] = (int) dst;
 
 	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
+		if (traceFullDisassemble) {
 		    System.out.print("#0x" + Lib.toHexString((int) dst));
 		    if (test(Mips.DELAYEDLOAD))
 			System.out.print(" (delayed load)");
@@ -1046,12 +1980,13 @@ public final class Processor {
 
 	    advancePC(nextPC);
 
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((traceDisassemble && !traceProcessor) ||
+		traceFullDisassemble)
 		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1998,293 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the contents of any register. These are computed once
+     * per word and cached in <tt>decodedPages</tt>.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	    this.imm = imm;
+	}
+
+	/** The instruction word this was decoded from. */
+	final int value;
+	final int op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+    }
+
+    /**
+     * A small direct-mapped cache of recently used translation entries,
+     * indexed by virtual page number. It holds references to the entries in
+     * the page table or TLB, so it sees changes to their used and dirty bits,
+     * but must be flushed whenever an entry may have been replaced or
+     * modified in any other way.
+     */
+    private static class TranslationCache {
+	TranslationCache() {
+	    flush();
+	}
+
+	/**
+	 * Return the cached entry for the specified virtual page, or
+	 * <tt>null</tt> if there is none.
+	 */
+	TranslationEntry lookup(int vpn) {
+	    int slot = vpn & (size-1);
+
+	    if (vpns[slot] != vpn)
+		return null;
+
+	    return entries[slot];
+	}
+
+	void fill(int vpn, TranslationEntry entry) {
+	    int slot = vpn & (size-1);
+
+	    vpns[slot] = vpn;
+	    entries[slot] = entry;
+	}
+
+	void flush() {
+	    for (int i=0; i<size; i++) {
+		vpns[i] = -1;
+		entries[i] = null;
+	    }
+	}
+
+	/** The number of translations that used this cache. */
+	long lookups = 0;
+	/** The number of those translations found in this cache. */
+	long hits = 0;
+
+	/** The number of slots; must be a power of 2. */
+	static final int size = 8;
+	
+	private int[] vpns = new int[size];
+	private TranslationEntry[] entries = new TranslationEntry[size];
+    }
+
+    /**
+     * A basic block compiled from decoded instructions, starting at
+     * <tt>paddr</tt>. Each instruction is reduced to an operation specific to
+     * its form, such as <tt>ADDIU</tt> rather than an add with an immediate
+     * flag, and the operands it uses, with immediates already extended and
+     * shifted, so that running it needs no decoding or flag tests.
+     *
+     * <p>
+     * A block can be compiled again from other code at the same address.
+     * Its arrays hold the longest block, so that this allocates nothing.
+     */
+    private static class Block {
+	Block(int paddr) {
+	    this.paddr = paddr;
+	}
+
+	/**
+	 * Compile the specified decoded instructions into this block.
+	 *
+	 * @param	code	the instructions, starting at <tt>paddr</tt>.
+	 * @param	length	the number of instructions.
+	 */
+	void compile(Decoded[] code, int length) {
+	    this.length = length;
+
+	    for (int i=0; i<length; i++) {
+		Decoded d = code[i];
+
+		words[i] = d.value;
+		kinds[i] = kind(d);
+		rs[i] = d.rs;
+		rt[i] = d.rt;
+
+		if (Lib.test(Mips.DST, d.flags) ||
+		    Lib.test(Mips.DELAYEDLOAD, d.flags))
+		    dst[i] = d.dstReg;
+		else
+		    dst[i] = 0;
+
+		if (Lib.test(Mips.SRC1SH, d.flags))
+		    imm[i] = d.sh;
+		else if (d.operation == Mips.LUI)
+		    imm[i] = d.imm << 16;
+		else if (d.format == Mips.JFMT)
+		    imm[i] = d.target << 2;
+		else if (Lib.test(Mips.BRANCH, d.flags))
+		    imm[i] = d.imm << 2;
+		else
+		    imm[i] = d.imm;
+	    }
+	}
+
+	/**
+	 * Return the block operation that runs the specified instruction, or
+	 * -1 if blocks leave it to the interpreter.
+	 */
+	static int kind(Decoded d) {
+	    boolean immediate = Lib.test(Mips.SRC2IMM, d.flags);
+	    boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+	    boolean link = Lib.test(Mips.LINK, d.flags);
+
+	    switch (d.operation) {
+	    case Mips.ADD:
+		if (Lib.test(Mips.OVERFLOW, d.flags))
+		    return immediate ? ADDI : ADD;
+		return immediate ? ADDIU : ADDU;
+	    case Mips.SUB:
+		return Lib.test(Mips.OVERFLOW, d.flags) ? SUB : SUBU;
+	    case Mips.AND:
+		return immediate ? ANDI : AND;
+	    case Mips.OR:
+		return immediate ? ORI : OR;
+	    case Mips.XOR:
+		return immediate ? XORI : XOR;
+	    case Mips.NOR:
+		return NOR;
+	    case Mips.LUI:
+		return LUI;
+	    case Mips.SLT:
+		if (immediate)
+		    return unsigned ? SLTIU : SLTI;
+		return unsigned ? SLTU : SLT;
+	    case Mips.SLL:
+		return Lib.test(Mips.SRC1SH, d.flags) ? SLL : SLLV;
+	    case Mips.SRL:
+		return Lib.test(Mips.SRC1SH, d.flags) ? SRL : SRLV;
+	    case Mips.SRA:
+		return Lib.test(Mips.SRC1SH, d.flags) ? SRA : SRAV;
+	    case Mips.MULT:
+		return unsigned ? MULTU : MULT;
+	    case Mips.DIV:
+		return unsigned ? DIVU : DIV;
+	    case Mips.MFHI:
+		return MFHI;
+	    case Mips.MFLO:
+		return MFLO;
+	    case Mips.MTHI:
+		return MTHI;
+	    case Mips.MTLO:
+		return MTLO;
+	    case Mips.LOAD:
+		return (d.size == 1) ? LB : (d.size == 2) ? LH : LW;
+	    case Mips.STORE:
+		return (d.size == 1) ? SB : (d.size == 2) ? SH : SW;
+	    case Mips.BEQ:
+		return BEQ;
+	    case Mips.BNE:
+		return BNE;
+	    case Mips.BLEZ:
+		return BLEZ;
+	    case Mips.BGTZ:
+		return BGTZ;
+	    case Mips.BLTZ:
+		return link ? BLTZAL : BLTZ;
+	    case Mips.BGEZ:
+		return link ? BGEZAL : BGEZ;
+	    case Mips.JUMP:
+		if (d.format == Mips.JFMT)
+		    return link ? JAL : J;
+		return link ? JALR : JR;
+	    default:
+		return -1;
+	    }
+	}
+
+	/**
+	 * Test whether the instruction words in memory are still the ones
+	 * this block was compiled from.
+	 */
+	boolean matches(ByteBuffer memory) {
+	    for (int i=0; i<length; i++) {
+		if (memory.getInt(paddr + i*4) != words[i])
+		    return false;
+	    }
+
+	    return true;
+	}
+
+	final int paddr;
+	int length;
+	/** The instruction words the block was compiled from. */
+	final int[] words = new int[capacity];
+	final int[] kinds = new int[capacity], rs = new int[capacity],
+	    rt = new int[capacity], imm = new int[capacity];
+	/** The register each instruction writes or loads, or 0 if none. */
+	final int[] dst = new int[capacity];
+	/** The value of <tt>kernelRuns</tt> when this block was last entered. */
+	long checkedAt;
+
+	/** The most instructions in a block: a branch and its delay slot. */
+	static final int capacity = maxBlockLength+1;
+
+	static final int
+	    ADDU = 0, ADDIU = 1, ADD = 2, ADDI = 3, SUBU = 4, SUB = 5,
+	    AND = 6, ANDI = 7, OR = 8, ORI = 9, XOR = 10, XORI = 11,
+	    NOR = 12, LUI = 13,
+	    SLT = 14, SLTI = 15, SLTU = 16, SLTIU = 17,
+	    SLL = 18, SRL = 19, SRA = 20, SLLV = 21, SRLV = 22, SRAV = 23,
+	    MULT = 24, MULTU = 25, DIV = 26, DIVU = 27,
+	    MFHI = 28, MFLO = 29, MTHI = 30, MTLO = 31,
+	    LB = 32, LH = 33, LW = 34, SB = 35, SH = 36, SW = 37,
+	    BEQ = 38, BNE = 39, BLEZ = 40, BGTZ = 41, BLTZ = 42, BGEZ = 43,
+	    BLTZAL = 44, BGEZAL = 45, J = 46, JAL = 47, JR = 48, JALR = 49;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -20,7 +20,8 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + ", idle " + idleTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
@@ -29,6 +30,17 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	System.out.println("Translation cache: fetch hits "
+			   + numFetchTranslationHits + " of "
+			   + numFetchTranslations + ", data hits "
+			   + numDataTranslationHits + " of "
+			   + numDataTranslations);
+	if (numBlocksCompiled > 0)
+	    System.out.println("Compiled blocks: " + numBlocksCompiled
+			       + ", runs " + numBlockRuns
+			       + ", instructions " + numBlockInstructions);
+	System.out.println("Java threads: created " + numThreadsCreated
+			   + ", reused " + numThreadsReused);
     }
 
     /**
@@ -44,6 +56,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The total amount of simulated time that passed while every thread was
+     * blocked, skipped by <tt>Interrupt.idle()</tt>.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,6 +74,43 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The total number of instruction fetches the processor translated with
+     * its translation cache.
+     */
+    public long numFetchTranslations = 0;
+    /** The number of those fetch translations that hit in the cache. */
+    public long numFetchTranslationHits = 0;
+    /**
+     * The total number of loads and stores the processor translated with its
+     * translation cache.
+     */
+    public long numDataTranslations = 0;
+    /** The number of those data translations that hit in the cache. */
+    public long numDataTranslationHits = 0;
+    /** The number of basic blocks the processor compiled. */
+    public long numBlocksCompiled = 0;
+    /** The number of times the processor ran a compiled block. */
+    public long numBlockRuns = 0;
+    /**
+     * The number of instructions the processor ran in compiled blocks. These
+     * are not counted as fetch translations, except the first of each run.
+     */
+    public long numBlockInstructions = 0;
+    /**
+     * The number of TCBs started in a newly created Java thread. The first
+     * TCB, which runs in the thread that started Nachos, is not counted.
+     */
+    public int numThreadsCreated = 0;
+    /** The number of TCBs started in a Java thread reused from the pool. */
+    public int numThreadsReused = 0;
+    /**
+     * The total host time, in nanoseconds, taken to start TCBs in new Java
+     * threads, until each new thread was ready to run.
+     */
+    public long threadCreationTime = 0;
+    /** The total host time, in nanoseconds, taken to start reused threads. */
+    public long threadReuseTime = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
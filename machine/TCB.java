@@ -6,12 +6,14 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object. When a TCB is destroyed, its JVM thread parks in a pool, from which
+ * later TCBs are started instead of creating a new thread.
  *
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -40,6 +42,11 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	maxThreads = Config.getInteger("TCB.maxThreads", defaultMaxThreads);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	pool = new Carrier[Config.getInteger("TCB.poolSize", defaultPoolSize)];
+	Lib.assertTrue(maxThreads > 0 && stackSize >= 0);
     }
     
     /**
@@ -86,27 +93,57 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    long startTime = System.nanoTime();
+	    boolean reused = (numPooled > 0);
+
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * We take one from the pool if we can. Otherwise we have to make a
+	     * new Java thread, which is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
-
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    if (reused) {
+		carrier = pool[--numPooled];
+		pool[numPooled] = null;
+	    }
+	    else {
+		carrier = new Carrier();
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    carrier.thread = new Thread(null, carrier, "TCB",
+							stackSize);
+			}
+		    });
+	    }
+
+	    javaThread = carrier.thread;
+
+	    /* The Java thread is either not yet started or parked in the pool,
+	     * but we need to get it blocking in yield(). We do this by
+	     * temporarily turning off the current TCB, handing this TCB to the
+	     * carrier, and waiting for it to wake us up from threadroot(). Once
+	     * the new TCB wakes us up, it's safe to context switch to the new
+	     * TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    carrier.next = this;
+	    if (reused)
+		LockSupport.unpark(javaThread);
+	    else
+		javaThread.start();
+
 	    currentTCB.waitForInterrupt();
+
+	    long time = System.nanoTime() - startTime;
+	    Stats stats = privilege.stats;
+	    if (reused) {
+		stats.numThreadsReused++;
+		stats.threadReuseTime += time;
+	    }
+	    else {
+		stats.numThreadsCreated++;
+		stats.threadCreationTime += time;
+	    }
 	}
 	else {
 	    /* This is the first TCB, so we don't need to make a new Java
@@ -272,6 +309,15 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    /* The TCB waiting in destroy() may start another TCB as soon as
+	     * we wake it, so our carrier must already be in the pool. It
+	     * will pick up the next TCB once we have unwound.
+	     */
+	    if (carrier != null && numPooled < pool.length) {
+		pool[numPooled++] = carrier;
+		carrier.pooled = true;
+	    }
+
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
 	}
@@ -280,29 +326,32 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * <tt>park()</tt> may return spuriously, or because of a permit left by an
+     * earlier <tt>unpark()</tt>, so the flag is tested again each time.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
+     * TCB. Since <tt>running</tt> is volatile, everything the current thread
+     * did before waking this TCB is visible to it once it sees the flag.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -326,11 +375,41 @@ public final class TCB {
 	toBeDestroyed = thread;
     }
 
+    /**
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence.
+     */
+    public static final int defaultMaxThreads = 250;
+
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, from <tt>TCB.maxThreads</tt> in the configuration.
+     */
+    private static int maxThreads = defaultMaxThreads;
+
+    /**
+     * The stack size to request for each Java thread, from
+     * <tt>TCB.stackSize</tt> in the configuration, or 0 for the JVM default.
+     * Nachos threads run little more than kernel code, so a small stack lets
+     * many thousands of them exist at once.
      */
-    public static final int maxThreads = 250;
+    private static long stackSize = 0;
+
+    /**
+     * The default number of idle Java threads kept for reuse.
+     */
+    public static final int defaultPoolSize = 16;
+
+    /**
+     * Java threads whose TCBs were destroyed, parked until <tt>start()</tt>
+     * reuses them. Its length is <tt>TCB.poolSize</tt> from the
+     * configuration, and only the first <tt>numPooled</tt> entries are used.
+     * Like the other static state, it is only touched by the thread of the
+     * current TCB, or by a doomed TCB while the current one waits in
+     * <tt>destroy()</tt>.
+     */
+    private static Carrier[] pool = new Carrier[defaultPoolSize];
+    private static int numPooled = 0;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -387,8 +466,12 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * This is the only field written by one Java thread and then read by
+     * another without a lock, so it is volatile.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +483,39 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+    /**
+     * The body of the Java thread running this TCB, or <tt>null</tt> for the
+     * first TCB, which runs in the thread that started Nachos.
+     */
+    private Carrier carrier = null;
+
+    /**
+     * The body of each Java thread created for a TCB. It runs the TCB it is
+     * handed in <tt>next</tt>, and if the thread is returned to the pool when
+     * that TCB is destroyed, parks until <tt>start()</tt> hands it another.
+     */
+    private static class Carrier implements Runnable {
+	public void run() {
+	    while (true) {
+		TCB tcb;
+		while ((tcb = next) == null)
+		    LockSupport.park(this);
+		next = null;
+		pooled = false;
+
+		tcb.threadroot();
+
+		if (!pooled)
+		    return;
+	    }
+	}
+
+	Thread thread;
+	/** The TCB to run next. Set by <tt>start()</tt> in another thread. */
+	volatile TCB next = null;
+	/** Set by <tt>yield()</tt> when the finished TCB pools this thread. */
+	boolean pooled = false;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
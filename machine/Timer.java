@@ -13,6 +13,14 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The periodic interrupt may be stopped, in which case the timer interrupts
+ * only when the kernel arms it, once, after a given number of ticks.
+ *
+ * <p>
+ * The timer also has a one-shot alarm, which generates a single interrupt at
+ * an exact time set by the kernel. Only one alarm time is set at once.
  */
 public final class Timer {
     /**
@@ -30,6 +38,10 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	alarmInterrupt = new Runnable() {
+		public void run() { alarmInterrupt(); }
+	    };
+
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -50,6 +62,101 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Start or stop the periodic timer interrupt. While it is stopped, the
+     * timer interrupt handler is only called when the timer has been armed
+     * by <tt>armInterrupt()</tt>.
+     *
+     * @param	periodic	<tt>true</tt> to interrupt approximately every
+     *				500 clock ticks.
+     */
+    public void setPeriodic(boolean periodic) {
+	if (this.periodic == periodic)
+	    return;
+
+	this.periodic = periodic;
+	timerSet = false;
+
+	if (periodic)
+	    scheduleInterrupt();
+    }
+
+    /**
+     * Arm the timer to interrupt once, after the specified number of ticks,
+     * replacing any earlier arming. The periodic interrupt must be stopped.
+     *
+     * @param	ticks	the number of ticks until the timer interrupt.
+     */
+    public void armInterrupt(long ticks) {
+	Lib.assertTrue(!periodic && ticks > 0);
+
+	if (timerSet && timerTime == getTime() + ticks)
+	    return;
+
+	timerSet = true;
+	timerTime = getTime() + ticks;
+
+	privilege.interrupt.schedule(ticks, "timer", timerInterrupt);
+    }
+
+    /**
+     * Disarm the timer, if it was armed by <tt>armInterrupt()</tt>.
+     */
+    public void disarmInterrupt() {
+	Lib.assertTrue(!periodic);
+
+	timerSet = false;
+    }
+
+    /**
+     * Test whether the timer will interrupt, either periodically or because
+     * it was armed.
+     *
+     * @return	<tt>true</tt> if a timer interrupt is due.
+     */
+    public boolean isArmed() {
+	return timerSet;
+    }
+
+    /**
+     * Set the callback to use as the alarm interrupt handler. The alarm
+     * interrupt handler is called once at the time given to
+     * <tt>setAlarm()</tt>.
+     *
+     * @param	handler		the alarm interrupt handler.
+     */
+    public void setAlarmHandler(Runnable handler) {
+	alarmHandler = handler;
+    }
+
+    /**
+     * Set the one-shot alarm to interrupt at the specified time, replacing
+     * any alarm time set before. If the time has already passed, the alarm
+     * interrupts on the next tick.
+     *
+     * @param	time	the time at which to interrupt, in clock ticks since
+     *			Nachos started.
+     */
+    public void setAlarm(long time) {
+	time = Math.max(time, getTime()+1);
+
+	if (alarmSet && alarmTime == time)
+	    return;
+
+	alarmSet = true;
+	alarmTime = time;
+
+	privilege.interrupt.schedule(time - getTime(), "alarm",
+				     alarmInterrupt);
+    }
+
+    /**
+     * Cancel the one-shot alarm, if it is set.
+     */
+    public void cancelAlarm() {
+	alarmSet = false;
+    }
+
     /**
      * Get the current time.
      *
@@ -60,7 +167,15 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	// an interrupt scheduled before the timer was stopped or rearmed is
+	// ignored
+	if (!timerSet || getTime() < timerTime)
+	    return;
+
+	timerSet = false;
+
+	if (periodic)
+	    scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -69,10 +184,24 @@ public final class Timer {
 	    handler.run();
     }
 
+    private void alarmInterrupt() {
+	// an interrupt scheduled for an alarm time since replaced is ignored
+	if (!alarmSet || getTime() < alarmTime)
+	    return;
+
+	alarmSet = false;
+
+	if (alarmHandler != null)
+	    alarmHandler.run();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
+	timerSet = true;
+	timerTime = getTime() + delay;
+
 	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
     }
 
@@ -83,7 +212,16 @@ public final class Timer {
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable alarmInterrupt;
+
+    private boolean periodic = true;
+    private boolean timerSet = false;
+    private long timerTime;
+
+    private boolean alarmSet = false;
+    private long alarmTime;
 
     private Privilege privilege;
     private Runnable handler = null;
+    private Runnable alarmHandler = null;
 }
@@ -156,8 +156,19 @@ public abstract class Privilege {
 	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
 	 *		code, <tt>false</tt> if the current thread is running
 	 *		MIPS user code.
+	 * @return	<tt>true</tt> if any interrupt handlers were invoked.
 	 */
-	public void tick(boolean inKernelMode);
+	public boolean tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user instructions that can execute before an
+	 * interrupt may be due. Until then, <tt>tick(false)</tt> would only
+	 * advance the simulated time.
+	 *
+	 * @return	the number of user ticks before the next interrupt, at
+	 *		least 1.
+	 */
+	public long ticksUntilNextInterrupt();
     }
 
     /**
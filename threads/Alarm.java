@@ -6,6 +6,12 @@ import nachos.machine.*;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are woken by the timer's one-shot alarm, which is always
+ * set to the earliest wake-up time, rather than by the periodic timer
+ * interrupt. So a thread wakes at exactly the tick it asked for, and threads
+ * that asked for the same tick are woken by the same interrupt.
  */
 public class Alarm {
     /**
@@ -13,6 +19,11 @@ public class Alarm {
      */
     PriorityQueue<SleepBundle> sleepQueue;
 
+    /**
+     * Whether the timer is armed only while threads are waiting to run.
+     */
+    private boolean ticklessPreemption;
+
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
      * alarm's callback.
@@ -24,19 +35,58 @@ public class Alarm {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
         });
+	Machine.timer().setAlarmHandler(new Runnable() {
+		public void run() { alarmInterrupt(); }
+        });
         
         sleepQueue = new PriorityQueue<SleepBundle>();
+
+        ticklessPreemption = Config.getBoolean("Alarm.ticklessPreemption", false);
+        if (ticklessPreemption)
+            Machine.timer().setPeriodic(false);
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, unless the scheduler decides it should keep
+     * running.
      */
     public void timerInterrupt() {
-        KThread.currentThread().yield();
-        
+        if (ThreadedKernel.scheduler.shouldPreempt())
+            KThread.currentThread().yield();
+    }
+
+    /**
+     * Arm or disarm the timer for preemption, if the
+     * <tt>Alarm.ticklessPreemption</tt> key is set. Then, instead of
+     * interrupting periodically, the timer is armed only while other threads
+     * are waiting in the ready queue, for the quantum the scheduler gives
+     * the running thread. Called by <tt>KThread</tt>, with interrupts
+     * disabled, whenever a thread is added to the ready queue or dispatched.
+     *
+     * @param	thread	the thread that is running, or about to run.
+     * @param	numReady	the number of threads in the ready queue.
+     * @param	dispatched	<tt>true</tt> if <tt>thread</tt> is about to
+     *				run, and so starts a new quantum.
+     */
+    void updatePreemption(KThread thread, int numReady, boolean dispatched) {
+        if (!ticklessPreemption)
+            return;
+
+        if (numReady == 0)
+            Machine.timer().disarmInterrupt();
+        else if (dispatched || !Machine.timer().isArmed())
+            Machine.timer().armInterrupt(ThreadedKernel.scheduler.getQuantum(thread));
+    }
+
+    /**
+     * The alarm interrupt handler. This is called by the machine's timer at
+     * the earliest wake-up time of the sleeping threads. Wakes every thread
+     * whose time has come, and sets the alarm for the next one.
+     */
+    private void alarmInterrupt() {
         long currTime = Machine.timer().getTime();
 
         //Check the top most element of the queue (if its not empty) and see if its past its wakeup time
@@ -45,13 +95,15 @@ public class Alarm {
             //Remove the thread from the sleep queue and put it on the ready queue
             sleepQueue.poll().thread.ready();
         }
+
+        if (!sleepQueue.isEmpty())
+            Machine.timer().setAlarm(sleepQueue.peek().wakeUpTime);
     }
 
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
-     * waking it up in the timer interrupt handler. The thread must be
-     * woken up (placed in the scheduler ready set) during the first timer
-     * interrupt where
+     * waking it up in the alarm interrupt handler. The thread is woken up
+     * (placed in the scheduler ready set) at the first tick where
      *
      * <p><blockquote>
      * (current time) >= (WaitUntil called time)+(x)
@@ -67,14 +119,20 @@ public class Alarm {
             return;
         }
 
+        boolean oldInt = Machine.interrupt().disable();
+
         //Add thread to queue based on its wake up time (x + Timer.getTime());
         long wakeUpTime = Machine.timer().getTime() + x;
 
         //Create a new sleepbundle with out current thread and the time to wake it up at
-        sleepQueue.add(new SleepBundle(KThread.currentThread(), wakeUpTime));
+        SleepBundle bundle = new SleepBundle(KThread.currentThread(), wakeUpTime);
+        sleepQueue.add(bundle);
+
+        //Set the alarm if this thread is now the first to wake up
+        if (sleepQueue.peek() == bundle)
+            Machine.timer().setAlarm(wakeUpTime);
 
         //Put thread to sleep
-        boolean oldInt = Machine.interrupt().disable();
         KThread.currentThread().sleep();
         Machine.interrupt().restore(oldInt);
         
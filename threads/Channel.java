@@ -0,0 +1,322 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries 32-bit words from speaking threads to listening
+ * threads, like a <tt>Communicator</tt>, but through a bounded buffer, and in
+ * batches.
+ *
+ * <p>
+ * A speaker returns as soon as all of its words are in the buffer, or have
+ * been received. With a capacity of 0, there is no buffer, and each speaker
+ * waits until a listener has received all of its words, as with a
+ * communicator. A listener returns once it has received as many words as it
+ * asked for. Words are received in the order they were spoken, and the words
+ * of one batch are never interleaved with those of another.
+ *
+ * <p>
+ * Only one speaker and one listener use the channel at once; the others wait
+ * for their turn on a lock. The active listener is woken only when enough
+ * words are available to finish its batch, or when the active speaker cannot
+ * fit the rest of its batch in the buffer. It then copies the words that did
+ * not fit directly from the speaker's array, and moves any it did not need
+ * into the buffer space it freed. The speaker is woken only once all of them
+ * have been received or buffered. So a batch costs a few context switches,
+ * however many words it holds.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can buffer, or
+     *				0 for every speaker to wait for a listener.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	buffer = new int[capacity];
+
+	lock = new Lock();
+	speakerDone = new Condition2(lock);
+	listenerReady = new Condition2(lock);
+    }
+
+    /**
+     * Speak a single word. Equivalent to <tt>speak(new int[] {word})</tt>.
+     *
+     * @param	word	the word to transfer.
+     */
+    public void speak(int word) {
+	speakLock.acquire();
+	speakerWord[0] = word;
+	transmit(speakerWord, 0, 1);
+	speakLock.release();
+    }
+
+    /**
+     * Speak all the words in the specified array.
+     *
+     * @param	words	the words to transfer.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Speak <i>length</i> words from the specified array, starting at
+     * <i>offset</i>. Returns once every word is in the buffer or has been
+     * received by a listener.
+     *
+     * @param	words	the array holding the words to transfer.
+     * @param	offset	the index of the first word to transfer.
+     * @param	length	the number of words to transfer.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= words.length);
+
+	speakLock.acquire();
+	transmit(words, offset, length);
+	speakLock.release();
+    }
+
+    /**
+     * Listen for a single word.
+     *
+     * @return	the word transferred.
+     */
+    public int listen() {
+	listenLock.acquire();
+	receive(listenerWord, 0, 1);
+	int word = listenerWord[0];
+	listenLock.release();
+
+	return word;
+    }
+
+    /**
+     * Listen for enough words to fill the specified array.
+     *
+     * @param	words	the array to fill with the words transferred.
+     */
+    public void listen(int[] words) {
+	listen(words, 0, words.length);
+    }
+
+    /**
+     * Listen for <i>length</i> words, storing them in the specified array
+     * starting at <i>offset</i>. Returns once all of them have been
+     * received.
+     *
+     * @param	words	the array in which to store the words transferred.
+     * @param	offset	the index at which to store the first word.
+     * @param	length	the number of words to receive.
+     */
+    public void listen(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= words.length);
+
+	listenLock.acquire();
+	receive(words, offset, length);
+	listenLock.release();
+    }
+
+    /**
+     * Transfer words as the active speaker.
+     */
+    private void transmit(int[] words, int offset, int length) {
+	lock.acquire();
+
+	// fill the buffer as far as possible
+	int n = fill(words, offset, length);
+
+	pending = words;
+	pendingOffset = offset + n;
+	pendingEnd = offset + length;
+
+	// the rest must be received from this speaker's array
+	if (pendingOffset < pendingEnd) {
+	    listenerReady.wake();
+	    while (pendingOffset < pendingEnd)
+		speakerDone.sleep();
+	}
+	else if (count >= listenerNeeds) {
+	    listenerReady.wake();
+	}
+
+	pending = null;
+	lock.release();
+    }
+
+    /**
+     * Transfer words as the active listener.
+     */
+    private void receive(int[] words, int offset, int length) {
+	lock.acquire();
+
+	int end = offset + length;
+	while (true) {
+	    // take words from the buffer first, since they were spoken first
+	    int n = Math.min(end - offset, count);
+	    for (int i=0; i<n; i++)
+		words[offset+i] = buffer[(first+i) % buffer.length];
+	    if (n > 0) {
+		first = (first + n) % buffer.length;
+		count -= n;
+		offset += n;
+	    }
+
+	    if (pending != null) {
+		n = Math.min(end - offset, pendingEnd - pendingOffset);
+		System.arraycopy(pending, pendingOffset, words, offset, n);
+		pendingOffset += n;
+		offset += n;
+
+		if (pendingOffset == pendingEnd)
+		    speakerDone.wake();
+	    }
+
+	    if (offset == end)
+		break;
+
+	    listenerNeeds = end - offset;
+	    listenerReady.sleep();
+	}
+
+	// move the words the speaker is still waiting on into the space just
+	// freed, so it need not wait for another listener
+	if (pending != null && pendingOffset < pendingEnd) {
+	    pendingOffset += fill(pending, pendingOffset,
+				  pendingEnd - pendingOffset);
+
+	    if (pendingOffset == pendingEnd)
+		speakerDone.wake();
+	}
+
+	listenerNeeds = Integer.MAX_VALUE;
+	lock.release();
+    }
+
+    /**
+     * Append as many of the specified words to the buffer as fit.
+     *
+     * @return	the number of words appended.
+     */
+    private int fill(int[] words, int offset, int length) {
+	int n = Math.min(length, buffer.length - count);
+	for (int i=0; i<n; i++)
+	    buffer[(first+count+i) % buffer.length] = words[offset+i];
+	count += n;
+
+	return n;
+    }
+
+    /**
+     * Test this class. Words spoken in batches of various sizes should all
+     * be received, in order, by listeners asking for batches of other sizes,
+     * whatever the capacity. A speaker whose batch did not fit in the buffer
+     * should return once a listener has made room for the rest, even if that
+     * listener asked for fewer words than the speaker spoke.
+     */
+    public static void selfTest() {
+	final int total = 1000;
+
+	for (final int capacity : new int[] { 0, 1, 7, 64 }) {
+	    final Channel channel = new Channel(capacity);
+
+	    KThread speaker = new KThread(new Runnable() {
+		    public void run() {
+			int next = 0;
+			for (int size=1; next<total; size=size%13+1) {
+			    int[] words = new int[Math.min(size, total-next)];
+			    for (int i=0; i<words.length; i++)
+				words[i] = next++;
+			    if (words.length == 1)
+				channel.speak(words[0]);
+			    else
+				channel.speak(words);
+			}
+		    }
+		}).setName("channel speaker");
+
+	    KThread listener = new KThread(new Runnable() {
+		    public void run() {
+			int next = 0;
+			for (int size=5; next<total; size=size%11+1) {
+			    int[] words = new int[Math.min(size, total-next)];
+			    if (words.length == 1)
+				words[0] = channel.listen();
+			    else
+				channel.listen(words);
+			    for (int i=0; i<words.length; i++) {
+				Lib.assertTrue(words[i] == next++,
+					       "channel word out of order");
+			    }
+			}
+		    }
+		}).setName("channel listener");
+
+	    speaker.fork();
+	    listener.fork();
+	    speaker.join();
+	    listener.join();
+
+	    Lib.assertTrue(channel.count == 0);
+	}
+
+	final Channel channel = new Channel(7);
+	final boolean[] spoke = new boolean[1];
+	new KThread(new Runnable() {
+		public void run() {
+		    int[] words = new int[10];
+		    for (int i=0; i<words.length; i++)
+			words[i] = i;
+		    channel.speak(words);
+		    spoke[0] = true;
+		}
+	    }).setName("channel speaker").fork();
+
+	int[] words = new int[5];
+	channel.listen(words);
+
+	// yield rather than join, so a speaker left waiting is caught
+	long deadline = Machine.timer().getTime() + 10*Stats.TimerTicks;
+	while (!spoke[0] && Machine.timer().getTime() < deadline)
+	    KThread.yield();
+	Lib.assertTrue(spoke[0], "channel speaker not woken");
+
+	Lib.assertTrue(channel.count == 5);
+	channel.listen(words);
+	for (int i=0; i<words.length; i++)
+	    Lib.assertTrue(words[i] == 5+i, "channel word out of order");
+
+	System.out.println("Channel test passed");
+    }
+
+    private Lock speakLock = new Lock();
+    private Lock listenLock = new Lock();
+
+    private Lock lock;
+    /** The active speaker waits here until its pending words are received. */
+    private Condition2 speakerDone;
+    /** The active listener waits here until it can make progress. */
+    private Condition2 listenerReady;
+
+    private int[] buffer;
+    /** The index of the oldest buffered word, and the number buffered. */
+    private int first = 0, count = 0;
+
+    /**
+     * The words of the active speaker that did not fit in the buffer, from
+     * <tt>pendingOffset</tt> up to <tt>pendingEnd</tt>.
+     */
+    private int[] pending = null;
+    private int pendingOffset, pendingEnd;
+
+    /** The number of words the waiting listener still needs. */
+    private int listenerNeeds = Integer.MAX_VALUE;
+
+    private int[] speakerWord = new int[1];
+    private int[] listenerWord = new int[1];
+}
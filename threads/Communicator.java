@@ -86,9 +86,12 @@ public class Communicator {
     	}
     	S_SendingWord.wake();
     	messageReceived = true;
+    	// read the word first, since releasing the lock lets the next
+    	// speaker replace it
+    	int word = hold;
     	oneLock.release();
     	
-	    return hold;
+	    return word;
     }
 
     public static void testCase() {
@@ -115,6 +118,45 @@ public class Communicator {
     	thread1.join();
     }
 
+    /**
+     * Test if this module is working. Several speakers and listeners
+     * exchange distinct words while the timer preempts them, and every word
+     * must be heard exactly once. A listener that read the word after
+     * releasing the lock could hear the next speaker's word instead.
+     */
+    public static void selfTest() {
+	final Communicator comm = new Communicator();
+	final int[] heard = new int[numPairs*wordsEach];
+
+	KThread[] threads = new KThread[numPairs*2];
+	for (int i=0; i<numPairs; i++) {
+	    final int first = i*wordsEach;
+	    threads[i*2] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<wordsEach; j++)
+			    comm.speak(first+j);
+		    }
+		}).setName("speaker " + i);
+	    threads[i*2+1] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<wordsEach; j++)
+			    heard[comm.listen()]++;
+		    }
+		}).setName("listener " + i);
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	for (int i=0; i<heard.length; i++)
+	    Lib.assertTrue(heard[i] == 1, "word " + i + " heard " + heard[i] +
+			   " times");
+    }
+
+    private static final int numPairs = 3, wordsEach = 20;
+
     private Lock oneLock;
    
     private Condition S_WaitingQueue;
@@ -62,6 +62,7 @@ public class Condition {
         this.conditionLock = conditionLock;
 
         waitQueue = new LinkedList<Semaphore>();
+        profile = SynchProfile.create("Condition", this);
     }
 
     /**
@@ -79,11 +80,21 @@ public class Condition {
     public void sleep() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        Semaphore waiter = new Semaphore(0);
+        Semaphore waiter = new Semaphore(0, false);
         waitQueue.add(waiter);
 
+        long waitStart = -1;
+        if (profile != null) {
+            waitStart = Machine.timer().getTime();
+            profile.sleeping();
+        }
+
         conditionLock.release();
         waiter.P();
+
+        if (profile != null)
+            profile.woken(KThread.currentThread(), waitStart);
+
         conditionLock.acquire();	
     }
 
@@ -111,4 +122,5 @@ public class Condition {
 
     private Lock conditionLock;
     private LinkedList<Semaphore> waitQueue;
+    private SynchProfile profile;
 }
@@ -34,13 +34,24 @@ public class Condition2 {
     public void sleep() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+        // disable interrupts first, so that no thread can call wake()
+        // between releasing the lock and joining the wait queue
+        boolean intStatus = Machine.interrupt().disable();
         conditionLock.release();
-        Machine.interrupt().disable();
         
+        long waitStart = -1;
+        if (profile != null) {
+            waitStart = Machine.timer().getTime();
+            profile.sleeping();
+        }
+
         waitQueue.add(KThread.currentThread());
         KThread.sleep();
         
-        Machine.interrupt().enable();
+        if (profile != null)
+            profile.woken(KThread.currentThread(), waitStart);
+
+        Machine.interrupt().restore(intStatus);
         conditionLock.acquire();
     }
 
@@ -76,6 +87,87 @@ public class Condition2 {
         Machine.interrupt().enable();
     }
 
+    private static class PingTest implements Runnable {
+        PingTest(Lock lock, Condition2 turnChanged, int[] turn, int me) {
+            this.lock = lock;
+            this.turnChanged = turnChanged;
+            this.turn = turn;
+            this.me = me;
+        }
+
+        public void run() {
+            for (int i=0; i<pingRounds; i++) {
+                lock.acquire();
+                while (turn[0] != me)
+                    turnChanged.sleep();
+                turn[0] = 1-me;
+                turnChanged.wake();
+                lock.release();
+            }
+
+            lock.acquire();
+            turn[1]++;
+            lock.release();
+        }
+
+        private Lock lock;
+        private Condition2 turnChanged;
+        private int[] turn;
+        private int me;
+    }
+
+    /**
+     * Test if this module is working. Checks that <tt>sleep()</tt> leaves
+     * interrupts as it found them.
+     */
+    public static void selfTest() {
+        final Lock lock = new Lock();
+        final Condition2 woken = new Condition2(lock);
+
+        boolean intStatus = Machine.interrupt().disable();
+        new KThread(new Runnable() {
+                public void run() {
+                    lock.acquire();
+                    woken.wake();
+                    lock.release();
+                }
+            }).setName("waker").fork();
+        lock.acquire();
+        woken.sleep();
+        Lib.assertTrue(Machine.interrupt().disabled(),
+                       "Condition2.sleep() enabled interrupts");
+        lock.release();
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test that no wake-up is lost. Two threads take turns through a
+     * condition variable while the timer preempts them, so some are
+     * preempted as <tt>sleep()</tt> releases the lock. If the other thread
+     * could call <tt>wake()</tt> before the sleeper joined the wait queue,
+     * both would sleep forever.
+     */
+    public static void stressTest() {
+        final Lock lock = new Lock();
+        final Condition2 turnChanged = new Condition2(lock);
+        // whose turn it is, and the number of threads done
+        final int[] turn = new int[] { 0, 0 };
+
+        new KThread(new PingTest(lock, turnChanged, turn, 0))
+            .setName("ping").fork();
+        new KThread(new PingTest(lock, turnChanged, turn, 1))
+            .setName("pong").fork();
+
+        // yield rather than join, so a lost wake-up is caught
+        long deadline = Machine.timer().getTime() + pingRounds*1000;
+        while (turn[1] < 2 && Machine.timer().getTime() < deadline)
+            KThread.yield();
+        Lib.assertTrue(turn[1] == 2, "Condition2 lost a wake-up");
+    }
+
+    private static final int pingRounds = 200;
+
     private Lock conditionLock;
     private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+    private SynchProfile profile = SynchProfile.create("Condition2", this);
 }
@@ -0,0 +1,408 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the processor fairly between threads, in
+ * proportion to a weight determined by their priorities, in the manner of the
+ * Linux completely fair scheduler.
+ *
+ * <p>
+ * Each thread has a <i>virtual runtime</i>: the processor time it has used,
+ * in ticks as measured by <tt>Timer.getTime()</tt>, divided by its weight.
+ * Each queue keeps its waiting threads in a red-black tree ordered by
+ * virtual runtime, and <tt>nextThread()</tt> returns the thread that has
+ * used the least, breaking ties in the order the threads were created. So
+ * every operation takes time logarithmic in the number of waiting threads.
+ *
+ * <p>
+ * Priorities range from <tt>priorityMinimum</tt> to
+ * <tt>priorityMaximum</tt>, and each step doubles a thread's weight. Unlike
+ * <tt>PriorityScheduler</tt>, a thread with a low priority is never starved,
+ * it just receives a smaller share. Priorities are not transferred.
+ *
+ * <p>
+ * A thread that has blocked, or is new, is not allowed to claim all the
+ * processor time it did not use while it was away. A new thread starts at
+ * the greatest virtual runtime dequeued from the ready queue so far, and a
+ * woken thread may lag behind that by at most one minimum granularity. Only
+ * the ready queue raises virtual runtimes or tracks the greatest dequeued;
+ * the queues of locks, semaphores and joins just dequeue by them, so how
+ * long a thread waits for one of them does not change its share of the
+ * processor.
+ *
+ * <p>
+ * The timer only preempts a thread once it has run for at least
+ * <tt>FairScheduler.minGranularity</tt> ticks since it was dispatched, so
+ * that with many threads ready, each still runs long enough to do useful
+ * work between context switches.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler, reading the minimum granularity from the
+     * configuration.
+     */
+    public FairScheduler() {
+	minGranularity = Config.getInteger("FairScheduler.minGranularity",
+					   Stats.TimerTicks);
+
+	Lib.assertTrue(minGranularity >= 0);
+
+	sleeperCredit = ((long) minGranularity << priorityMaximum) >>
+	    priorityDefault;
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. Priorities are not
+     *					transferred.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue(false);
+    }
+
+    /**
+     * Allocate the ready queue, the only queue that raises the virtual
+     * runtime of new and woken threads.
+     *
+     * @return	a new fair ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new FairQueue(true);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	ThreadState state = getThreadState(thread);
+
+	// charge the time used so far at the old weight
+	if (thread == KThread.currentThread())
+	    chargeCurrentThread(Machine.timer().getTime());
+
+	// the weight is not part of a waiting thread's key, so it may change
+	state.priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Return <tt>true</tt> once the current thread has run for at least the
+     * minimum granularity since it was dispatched.
+     */
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(KThread.currentThread());
+
+	return Machine.timer().getTime() - state.dispatched >= minGranularity;
+    }
+
+    /**
+     * Return the minimum granularity, so that an armed timer preempts the
+     * thread as soon as <tt>shouldPreempt()</tt> allows.
+     */
+    public long getQuantum(KThread thread) {
+	return Math.max(minGranularity, 1);
+    }
+
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = 7;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Charge the current thread for the processor time it has used since it
+     * was last dispatched or charged. A thread always gives up the processor
+     * by adding itself to a queue or by dequeuing the next thread, so every
+     * tick it runs is charged.
+     */
+    private void chargeCurrentThread(long time) {
+	KThread current = KThread.currentThread();
+	if (current == null)
+	    return;
+
+	ThreadState state = getThreadState(current);
+	state.vruntime += state.scale(time - state.charged);
+	state.charged = time;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the least
+     * virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	FairQueue(boolean ready) {
+	    this.ready = ready;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // a thread's virtual runtime must not change while it is in a tree
+	    chargeCurrentThread(Machine.timer().getTime());
+
+	    ThreadState state = getThreadState(thread);
+
+	    if (!ready) {
+		Lib.assertTrue(waitQueue.add(state));
+		return;
+	    }
+
+	    if (!state.started) {
+		state.started = true;
+		state.vruntime = Math.max(state.vruntime, minVruntime);
+	    }
+	    else if (thread != KThread.currentThread()) {
+		// woken by another thread, so it was blocked
+		state.vruntime = Math.max(state.vruntime,
+					  minVruntime - sleeperCredit);
+	    }
+
+	    Lib.assertTrue(waitQueue.add(state));
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (!ready) {
+		ThreadState state = waitQueue.pollFirst();
+		return (state == null) ? null : state.thread;
+	    }
+
+	    long time = Machine.timer().getTime();
+	    chargeCurrentThread(time);
+
+	    ThreadState state = waitQueue.pollFirst();
+	    if (state == null)
+		return null;
+
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+
+	    state.dispatched = state.charged = time;
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (ThreadState state : waitQueue)
+		System.out.print(state.thread + " (" + state.vruntime + ") ");
+	}
+
+	/** The waiting threads, ordered by virtual runtime. */
+	private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>();
+	/** The greatest virtual runtime dequeued so far, if ready. */
+	private long minVruntime = 0;
+	/** <tt>true</tt> if this is the ready queue. */
+	private boolean ready;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority and virtual runtime.
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    id = numThreadStates++;
+	    dispatched = charged = Machine.timer().getTime();
+	}
+
+	/**
+	 * Convert processor time used by the associated thread to virtual
+	 * runtime. The weight of priority <i>p</i> is 2<sup>p</sup>, so this
+	 * divides exactly.
+	 */
+	long scale(long ticks) {
+	    return (ticks << priorityMaximum) >> priority;
+	}
+
+	public int compareTo(ThreadState state) {
+	    if (vruntime != state.vruntime)
+		return vruntime < state.vruntime ? -1 : 1;
+	    else
+		return id < state.id ? -1 : (id > state.id ? 1 : 0);
+	}
+
+	/** The thread with which this object is associated. */
+	KThread thread;
+	/** Breaks ties between equal virtual runtimes. */
+	long id;
+	/** The priority of the associated thread. */
+	int priority = priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	long vruntime = 0;
+	/** The time the thread was last dispatched. */
+	long dispatched;
+	/** The time the thread was last charged. */
+	long charged;
+	/** Whether the thread has been added to the ready queue before. */
+	boolean started = false;
+    }
+
+    /**
+     * Test this scheduler, if it is the kernel's scheduler. Three threads
+     * that compute at priorities 1, 2 and 3 should receive shares of roughly
+     * 1:2:4, and hundreds of threads should all run to completion.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof FairScheduler))
+	    return;
+
+	final long deadline = Machine.timer().getTime() + 100*Stats.TimerTicks;
+	final long[] iterations = new long[3];
+	KThread[] threads = new KThread[3];
+
+	for (int i=0; i<3; i++) {
+	    final int which = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			// interrupts are reenabled often enough for the timer
+			// to preempt this thread
+			while (Machine.timer().getTime() < deadline) {
+			    boolean intStatus = Machine.interrupt().disable();
+			    iterations[which]++;
+			    Machine.interrupt().restore(intStatus);
+			}
+		    }
+		}).setName("fair " + (i+1));
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(threads[i], i+1);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	for (int i=0; i<3; i++)
+	    threads[i].fork();
+	for (int i=0; i<3; i++)
+	    threads[i].join();
+
+	for (int i=1; i<3; i++) {
+	    double ratio = (double) iterations[i] / iterations[i-1];
+	    Lib.assertTrue(ratio > 1.6 && ratio < 2.5,
+			   "unfair share: " + iterations[i] + " to " +
+			   iterations[i-1]);
+	}
+
+	final int numThreads = 200;
+	final int[] finished = new int[1];
+	threads = new KThread[numThreads];
+
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<10; j++) {
+			    boolean intStatus = Machine.interrupt().disable();
+			    Machine.interrupt().restore(intStatus);
+			    KThread.yield();
+			}
+			finished[0]++;
+		    }
+		});
+	    threads[i].fork();
+	}
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(finished[0] == numThreads);
+
+	System.out.println("FairScheduler test passed");
+    }
+
+    /** The minimum time a thread runs before the timer preempts it. */
+    private int minGranularity;
+    /**
+     * How far a woken thread's virtual runtime may lag behind, one minimum
+     * granularity at the default priority.
+     */
+    private long sleeperCredit;
+    /** The number of thread states allocated, used to break ties. */
+    private long numThreadStates = 0;
+}
@@ -49,7 +49,7 @@ public class KThread {
             tcb = new TCB();
         }       
         else {
-            readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+            readyQueue = ThreadedKernel.scheduler.newReadyQueue();
             readyQueue.acquire(this);       
 
             currentThread = this;
@@ -141,8 +141,8 @@ public class KThread {
         Lib.assertTrue(status == statusNew);
         Lib.assertTrue(target != null);
         
-        Lib.debug(dbgThread,
-              "Forking thread: " + toString() + " Runnable: " + target);
+        if (traceThread)
+            System.out.println("Forking thread: " + toString() + " Runnable: " + target);
 
         boolean intStatus = Machine.interrupt().disable();
 
@@ -164,7 +164,8 @@ public class KThread {
     }
 
     private void begin() {
-	Lib.debug(dbgThread, "Beginning thread: " + toString());
+	if (traceThread)
+	    System.out.println("Beginning thread: " + toString());
 	
 	Lib.assertTrue(this == currentThread);
 
@@ -184,7 +185,8 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
-        Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+        if (traceThread)
+            System.out.println("Finishing thread: " + currentThread.toString());
         
         Machine.interrupt().disable();
 
@@ -220,7 +222,8 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-        Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+        if (traceThread)
+            System.out.println("Yielding thread: " + currentThread.toString());
         
         Lib.assertTrue(currentThread.status == statusRunning);
         
@@ -245,7 +248,8 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-        Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+        if (traceThread)
+            System.out.println("Sleeping thread: " + currentThread.toString());
         
         Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -260,14 +264,22 @@ public class KThread {
      * ready queue.
      */
     public void ready() {
-        Lib.debug(dbgThread, "Ready thread: " + toString());
+        if (traceThread)
+            System.out.println("Ready thread: " + toString());
         
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(status != statusReady);
         
         status = statusReady;
-        if (this != idleThread)
+        if (this != idleThread) {
             readyQueue.waitForAccess(this);
+            numReady++;
+            SchedulerProfile.ready(this);
+
+            if (ThreadedKernel.alarm != null)
+                ThreadedKernel.alarm.updatePreemption(currentThread, numReady,
+                                                      false);
+        }
         
         Machine.autoGrader().readyThread(this);
     }
@@ -279,13 +291,15 @@ public class KThread {
      * thread.
      */
     public void join() {
-        Lib.debug(dbgThread, "~~~ Joining " + currentThread().toString() + " to " + toString());
+        if (traceThread)
+            System.out.println("~~~ Joining " + currentThread().toString() + " to " + toString());
 
         Lib.assertTrue(this != currentThread);
 
         Machine.interrupt().disable();
         if(this.joined){
-            Lib.debug(dbgThread, "!!! " + toString() + " has already been joined");
+            if (traceThread)
+                System.out.println("!!! " + toString() + " has already been joined");
             return;
         }
         if(this.status != statusFinished){
@@ -301,7 +315,9 @@ public class KThread {
      * Create the idle thread. Whenever there are no threads ready to be run,
      * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
      * idle thread must never block, and it will only be allowed to run when
-     * all other threads are blocked.
+     * all other threads are blocked. Rather than spinning until an interrupt
+     * makes a thread ready, it skips the simulated time to the next pending
+     * interrupt.
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
@@ -310,7 +326,12 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    Machine.interrupt().idle();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -325,9 +346,16 @@ public class KThread {
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
+	if (nextThread != null)
+	    numReady--;
+	SchedulerProfile.dispatch(nextThread != null ? nextThread : idleThread,
+				  nextThread != null);
 	if (nextThread == null)
 	    nextThread = idleThread;
 
+	if (ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.updatePreemption(nextThread, numReady, true);
+
 	nextThread.run();
     }
 
@@ -358,8 +386,9 @@ public class KThread {
 
         currentThread.saveState();
 
-        Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-              + " to: " + toString());
+        if (traceThread)
+            System.out.println("Switching from: " + currentThread.toString()
+                               + " to: " + toString());
 
         currentThread = this;
 
@@ -373,7 +402,8 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-	Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+	if (traceThread)
+	    System.out.println("Running thread: " + currentThread.toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
@@ -468,6 +498,12 @@ public class KThread {
     }
 
     private static final char dbgThread = 't';
+    /**
+     * Whether thread tracing is enabled. The debug flags are fixed on the
+     * command line before this class is loaded, so the test is made once
+     * here rather than on every context switch.
+     */
+    private static final boolean traceThread = Lib.test(dbgThread);
 
     /**
      * Additional state used by schedulers.
@@ -476,6 +512,14 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * The scheduling measurements of this thread, if the scheduler is being
+     * profiled.
+     *
+     * @see nachos.threads.SchedulerProfile
+     */
+    SchedulerProfile.ThreadRecord profileRecord = null;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -505,6 +549,8 @@ public class KThread {
     private boolean joined = false;
 
     private static ThreadQueue readyQueue = null;
+    /** The number of threads in the ready queue. */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
@@ -36,7 +36,10 @@ public class Lock {
         boolean intStatus = Machine.interrupt().disable();
         KThread thread = KThread.currentThread();
 
+        long waitStart = -1;
         if (lockHolder != null) {
+            if (profile != null)
+                waitStart = Machine.timer().getTime();
             waitQueue.waitForAccess(thread);
             KThread.sleep();
         }
@@ -47,6 +50,9 @@ public class Lock {
 
         Lib.assertTrue(lockHolder == thread);
 
+        if (profile != null)
+            profile.acquired(thread, waitStart);
+
         Machine.interrupt().restore(intStatus);
     }
 
@@ -58,6 +64,9 @@ public class Lock {
 
         boolean intStatus = Machine.interrupt().disable();
 
+        if (profile != null)
+            profile.released();
+
         if ((lockHolder = waitQueue.nextThread()) != null)
             lockHolder.ready();
         
@@ -76,4 +85,5 @@ public class Lock {
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
+    private SynchProfile profile = SynchProfile.create("Lock", this);
 }
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Random;
-import java.util.Iterator;
-import java.util.HashSet;
+import java.util.ArrayList;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,149 +23,617 @@ import java.util.HashSet;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * that drawing the winner, adding or removing a thread, and changing a
+ * thread's tickets all take time logarithmic in the number of waiting
+ * threads. A change in a thread's tickets is added to the queue it waits in,
+ * and from there to the queue's owner and the threads that share access to
+ * it, along the chains of owners. The winning ticket is drawn with
+ * <tt>Lib.random()</tt>, so a run can be repeated with the same random seed.
  */
-public class LotteryScheduler extends PriorityScheduler {
+public class LotteryScheduler extends Scheduler {
+    /**
+     * Allocate a new lottery scheduler.
+     */
     public LotteryScheduler() {
     }
-    public static int priorityMinimum = 1;
-    public static int priorityDefault = 1;
-    public static int priorityMaximum = Integer.MAX_VALUE;
 
-        @Override
-	protected ThreadState getThreadState(KThread thread) {
-		if (thread.schedulingState == null)
-			thread.schedulingState = new ThreadState(thread);
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Allocate a new lottery thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new lottery thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getEffectivePriority();
+    }
 
-		return (ThreadState) thread.schedulingState;
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
 	}
 
-    public ThreadQueue newThreadQueue(boolean transferPriority){
-    	return new LotteryQueue(transferPriority);
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
     }
-    
-    protected class LotteryQueue extends PriorityScheduler.PriorityQueue{
-    	LotteryQueue(boolean transferPriority){
-    		super(transferPriority)  ;
-    		waitQueue = new HashSet<ThreadState>();
-    	}
-		@Override
-		public void waitForAccess(KThread thread) {
-			Lib.assertTrue(Machine.interrupt().disabled());
-			getThreadState(thread).waitForAccess(this);
-		}
-		@Override
-		public void acquire(KThread thread) {
-			Lib.assertTrue(Machine.interrupt().disabled());
-			getThreadState(thread).acquire(this);
-        }
-		@Override
-		public KThread nextThread() {
-			Lib.assertTrue(Machine.interrupt().disabled());
-				ThreadState nextThread = this.pickNextThread();
-				if (nextThread == null)
-					return null;
-				nextThread.acquire(this);
-				return nextThread.thread;
-		}
-		@Override
-		protected ThreadState pickNextThread() {
-			if (totalTickets == 0) return null; //nothing to do
-            int choose =  (new Random()).nextInt(totalTickets); //random ticket
-			for (ThreadState T : waitQueue){ 
-				if (choose >= T.base && choose < T.base + T.getEffectivePriority()){ 
-					return T;//choose next thread
-				}
-			}
-			return null;
-		}
-		
-    	public void updateTotalTickets(){
-    		totalTickets = 0; // number of tickets starts at 0
-    		for (ThreadState T : waitQueue){ // all waiting threads donate then submit tickets
-    			if (owner != null && this.transferPriority){
-					T.revert();
-					if (T.ePriority > 0){
-						T.donated = T.ePriority; // save amount donated
-						owner.ePriority += T.donated; // donate 
-						T.borrower = owner; // save a reference to thread donated to
-					}
-				}
-    			T.base = totalTickets; 
-    			totalTickets += T.ePriority;
-    		}
-    	}
-        ThreadState owner;
-    	HashSet<ThreadState> waitQueue;
-    	int totalTickets = 0; // number of tickets in this queue
-    	
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
     }
-    protected class ThreadState extends PriorityScheduler.ThreadState{
 
-		public ThreadState(KThread thread) {
-			super(thread)  ;
-		}
-	    @Override
-		public int getEffectivePriority() {
-
-			for (LotteryQueue Q : owned){ 
-				for (ThreadState T : Q.waitQueue){
-					T.getEffectivePriority();
-				}
-				Q.updateTotalTickets(); 
-			}
-			revert(); // reclaim donation
-			if (waiting != null) {
-				waiting.updateTotalTickets();//try donating
-			} 
-        	return (ePriority > 0)? ePriority:1;
-		}
-	    @Override
-		public void setPriority(int priority) {
-			if (priority > 0 && priority != this.priority){
-				this.priority = this.ePriority = priority;
-				updatePriority(); 
-			}
-		}
-		public void waitForAccess(LotteryQueue waitQueue) {
-			if (owned.remove(waitQueue)){ 
-				waitQueue.owner = null;//previously owned
-			}
-			waiting = waitQueue; 
-			waiting.waitQueue.add(this); 
-			updatePriority(); 
-		}
-		public void acquire(LotteryQueue ownedQueue) {
-			if (waiting == ownedQueue){ 
-				waiting.waitQueue.remove(this);//stop waiting
-				waiting = null;
-			}
-			if (ownedQueue.owner != null && ownedQueue.owner != this){
-				ownedQueue.owner.owned.remove(ownedQueue); 
-				ownedQueue.owner.updatePriority(); 
-			}
-			ownedQueue.owner = this; 
-			updatePriority();
-		}
-		public void updatePriority(){
-			for (LotteryQueue lq : owned){ 
-				lq.updateTotalTickets();//all owned donations
-			}
-			if (waiting != null) waiting.updateTotalTickets();
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+
+	    for (int slot=initialSlots-1; slot>=0; slot--)
+		free[numFree++] = slot;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquire(this);
+	}
+
+	public void acquireShared(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquireShared(this);
+	}
+
+	public void release(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).release(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState nextThread = pickNextThread();
+	    if (nextThread == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    nextThread.acquire(this);
+	    return nextThread.thread;
+	}
+
+	/**
+	 * Draw the winning ticket. Unlike a priority queue, the result is
+	 * random, so calling this twice may not return the same thread.
+	 *
+	 * @return	the thread holding the winning ticket, or <tt>null</tt>
+	 *		if no thread is waiting.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (numWaiting == 0)
+		return null;
+
+	    long ticket = (long) (Lib.random() * totalTickets);
+	    if (ticket >= totalTickets)
+		ticket = totalTickets - 1;
+
+	    // find the first slot whose running total exceeds the ticket
+	    int slot = 0;
+	    for (int step=Integer.highestOneBit(waiting.length); step>0;
+		 step>>=1) {
+		if (slot+step <= waiting.length && tree[slot+step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
 		}
-		public void revert(){
-			if (borrower != null){ 
-				borrower.revert(); 
-				borrower.ePriority -= donated; 
-				donated = 0;
-				borrower = null; 
-			}
+	    }
+
+	    return waiting[slot];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int slot=0; slot<waiting.length; slot++) {
+		if (waiting[slot] != null)
+		    System.out.print(waiting[slot].getThread() + " ");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Give a waiting thread a slot, and add its tickets to the tree.
+	 */
+	void add(ThreadState state) {
+	    if (numFree == 0)
+		grow();
+
+	    state.slot = free[--numFree];
+	    waiting[state.slot] = state;
+	    numWaiting++;
+
+	    changeTickets(state.slot, state.tickets);
+	}
+
+	/**
+	 * Remove a waiting thread's tickets from the tree, and free its slot.
+	 */
+	void remove(ThreadState state) {
+	    changeTickets(state.slot, -state.tickets);
+
+	    waiting[state.slot] = null;
+	    free[numFree++] = state.slot;
+	    numWaiting--;
+	    state.slot = -1;
+	}
+
+	/**
+	 * Add to the tickets in the specified slot, and to the total.
+	 */
+	void changeTickets(int slot, long delta) {
+	    for (int i=slot+1; i<=waiting.length; i+=i&-i)
+		tree[i] += delta;
+
+	    totalTickets += delta;
+	}
+
+	/**
+	 * Double the number of slots, and rebuild the tree.
+	 */
+	private void grow() {
+	    int oldLength = waiting.length;
+	    int length = oldLength * 2;
+
+	    ThreadState[] oldWaiting = waiting;
+	    waiting = new ThreadState[length];
+	    System.arraycopy(oldWaiting, 0, waiting, 0, oldLength);
+
+	    // every old slot is in use, or we would not be growing
+	    free = new int[length];
+	    for (int slot=length-1; slot>=oldLength; slot--)
+		free[numFree++] = slot;
+
+	    tree = new long[length+1];
+	    for (int i=1; i<=length; i++) {
+		if (waiting[i-1] != null)
+		    tree[i] += waiting[i-1].tickets;
+
+		int parent = i + (i&-i);
+		if (parent <= length)
+		    tree[parent] += tree[i];
+	    }
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, moving the
+	 * tickets its waiters transfer from the previous owner. A thread
+	 * sharing access that becomes the owner no longer shares it.
+	 */
+	void setOwner(ThreadState newOwner) {
+	    if (!transferPriority || owner == newOwner)
+		return;
+
+	    ThreadState oldOwner = owner;
+	    owner = newOwner;
+
+	    if (oldOwner != null)
+		SchedulerProfile.donation(1 +
+					  oldOwner.addTickets(-totalTickets));
+	    // a sharer already receives this queue's tickets
+	    if (newOwner != null && !removeSharer(newOwner))
+		SchedulerProfile.donation(1 +
+					  newOwner.addTickets(totalTickets));
+	}
+
+	/**
+	 * Remove the specified thread from the threads sharing access, if it
+	 * is one of them.
+	 *
+	 * @return	<tt>true</tt> if the thread was sharing access.
+	 */
+	boolean removeSharer(ThreadState state) {
+	    return sharers != null && sharers.remove(state);
+	}
+
+	/**
+	 * Pass a change in the tickets of this queue's waiters on to its
+	 * owner and the threads sharing access.
+	 *
+	 * @param	delta	the number of tickets added, which may be
+	 *			negative.
+	 */
+	void transferTickets(long delta) {
+	    if (!transferPriority)
+		return;
+
+	    int depth = 0;
+	    if (owner != null)
+		depth += 1 + owner.addTickets(delta);
+	    if (sharers != null) {
+		for (ThreadState sharer : sharers)
+		    depth += 1 + sharer.addTickets(delta);
+	    }
+
+	    SchedulerProfile.donation(depth);
+	}
+
+	/** The waiting thread in each slot, or <tt>null</tt>. */
+	private ThreadState[] waiting = new ThreadState[initialSlots];
+	/** The unused slots, of which the first <tt>numFree</tt> are valid. */
+	private int[] free = new int[initialSlots];
+	private int numFree = 0;
+	private int numWaiting = 0;
+
+	/**
+	 * A Fenwick tree over the tickets of the waiting threads. Entry
+	 * <i>i</i> holds the sum of the tickets in slots <i>i</i> - (<i>i</i>
+	 * &amp; -<i>i</i>) through <i>i</i> - 1.
+	 */
+	private long[] tree = new long[initialSlots+1];
+	private long totalTickets = 0;
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that owns this queue, if it transfers tickets. */
+	ThreadState owner = null;
+	/**
+	 * The threads that share access to this queue, if it transfers
+	 * tickets, or <tt>null</tt> if none ever has.
+	 */
+	ArrayList<ThreadState> sharers = null;
+    }
+
+    private static final int initialSlots = 4;
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+
+	    tickets = priority;
+	}
+
+	/**
+	 * Return the associated thread.
+	 *
+	 * @return	the associated thread.
+	 */
+	public KThread getThread() {
+	    return thread;
+	}
+
+	/**
+	 * Return the number of tickets of the associated thread.
+	 *
+	 * @return	the number of tickets of the associated thread.
+	 */
+	public int getPriority() {
+	    return priority;
+	}
+
+	/**
+	 * Return the tickets this thread holds, including those transferred
+	 * to it, or <tt>Integer.MAX_VALUE</tt> if there are more.
+	 *
+	 * @return	the effective number of tickets.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(tickets, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	priority	the new number of tickets.
+	 */
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    long delta = (long) priority - this.priority;
+	    this.priority = priority;
+	    SchedulerProfile.donation(addTickets(delta));
+	}
+
+	/**
+	 * Called when the associated thread starts waiting in the specified
+	 * queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waiting == null);
+
+	    // a thread waiting for a resource does not hold it
+	    release(waitQueue);
+
+	    waiting = waitQueue;
+	    waitQueue.add(this);
+
+	    waitQueue.transferTickets(tickets);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue the thread acquired.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (waiting == waitQueue) {
+		waitQueue.remove(this);
+		waiting = null;
+
+		waitQueue.transferTickets(-tickets);
+	    }
+
+	    waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Called when the associated thread has received access to whatever is
+	 * guarded by <tt>waitQueue</tt>, which it shares with other threads.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquireShared
+	 */
+	public void acquireShared(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waiting != waitQueue);
+
+	    if (!waitQueue.transferPriority || waitQueue.owner == this ||
+		(waitQueue.sharers != null && waitQueue.sharers.contains(this)))
+		return;
+
+	    if (waitQueue.sharers == null)
+		waitQueue.sharers = new ArrayList<ThreadState>();
+	    waitQueue.sharers.add(this);
+
+	    SchedulerProfile.donation(1 + addTickets(waitQueue.totalTickets));
+	}
+
+	/**
+	 * Called when the associated thread no longer has access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#release
+	 */
+	public void release(LotteryQueue waitQueue) {
+	    if (waitQueue.owner == this)
+		waitQueue.setOwner(null);
+	    else if (waitQueue.removeSharer(this))
+		SchedulerProfile.donation(1 +
+					  addTickets(-waitQueue.totalTickets));
+	}
+
+	/**
+	 * Add to the tickets of this thread, and to every queue, owner and
+	 * sharer along the chains that this thread waits for.
+	 *
+	 * @param	delta	the number of tickets to add, which may be
+	 *			negative.
+	 * @return	the number of owners the change was passed on to.
+	 */
+	int addTickets(long delta) {
+	    int depth = 0;
+
+	    for (ThreadState state=this; state!=null; ) {
+		state.tickets += delta;
+
+		LotteryQueue queue = state.waiting;
+		if (queue == null)
+		    break;
+
+		queue.changeTickets(state.slot, delta);
+		if (!queue.transferPriority)
+		    break;
+
+		if (queue.sharers != null) {
+		    for (ThreadState sharer : queue.sharers)
+			depth += 1 + sharer.addTickets(delta);
 		}
-		public int donated = 0;
-    	public int base = 0;
-    	public ThreadState borrower = null;
-    	public HashSet<LotteryQueue> owned =new HashSet<LotteryQueue>();
-    	public LotteryQueue waiting = null; 
-    	
-	}
-    
-}
\ No newline at end of file
+
+		state = queue.owner;
+		if (state != null)
+		    depth++;
+	    }
+
+	    return depth;
+	}
+
+	/** The thread with which this object is associated. */
+	public KThread thread;
+	/** The number of tickets of the associated thread. */
+	protected int priority = priorityDefault;
+	/**
+	 * The tickets of the associated thread, plus those transferred to it
+	 * by the threads waiting in queues it owns.
+	 */
+	long tickets;
+	/** The queue the associated thread is waiting in, if any. */
+	LotteryQueue waiting;
+	/** The slot of the associated thread in <tt>waiting</tt>. */
+	int slot;
+    }
+
+    /**
+     * Test this scheduler, if it is the kernel's scheduler. Check that
+     * tickets are transferred along a chain of queues and to threads sharing
+     * access, and taken back, that threads win in proportion to their
+     * tickets, and that thousands of ticket holders are handled quickly.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof LotteryScheduler))
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	LotteryScheduler s = new LotteryScheduler();
+
+	// tickets add up along a chain of locks
+	int depth = 100;
+	ThreadQueue[] chain = new ThreadQueue[depth];
+	KThread[] holders = new KThread[depth+1];
+	for (int i=0; i<=depth; i++) {
+	    holders[i] = new KThread().setName("holder" + i);
+	    s.setPriority(holders[i], 2);
+	}
+	for (int i=0; i<depth; i++) {
+	    chain[i] = s.newThreadQueue(true);
+	    chain[i].acquire(holders[i]);
+	    if (i > 0)
+		chain[i-1].waitForAccess(holders[i]);
+	}
+	chain[depth-1].waitForAccess(holders[depth]);
+	Lib.assertTrue(s.getEffectivePriority(holders[0]) == 2*(depth+1));
+
+	s.setPriority(holders[depth], 1000);
+	Lib.assertTrue(s.getEffectivePriority(holders[0]) == 2*depth + 1000);
+
+	for (int i=depth-1; i>=0; i--)
+	    Lib.assertTrue(chain[i].nextThread() == holders[i+1]);
+	Lib.assertTrue(s.getEffectivePriority(holders[0]) == 2);
+	Lib.assertTrue(s.getEffectivePriority(holders[depth]) == 1000);
+
+	// tickets are transferred to every thread sharing access
+	ThreadQueue shared = s.newThreadQueue(true);
+	KThread[] sharers = new KThread[3];
+	for (int i=0; i<3; i++) {
+	    sharers[i] = new KThread().setName("sharer" + i);
+	    shared.acquireShared(sharers[i]);
+	}
+	KThread writer = new KThread().setName("writer");
+	s.setPriority(writer, 5);
+	shared.waitForAccess(writer);
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(s.getEffectivePriority(sharers[i]) == 6);
+
+	shared.release(sharers[0]);
+	Lib.assertTrue(s.getEffectivePriority(sharers[0]) == 1);
+	Lib.assertTrue(s.getEffectivePriority(sharers[1]) == 6);
+	Lib.assertTrue(shared.nextThread() == writer);
+	for (int i=1; i<3; i++) {
+	    Lib.assertTrue(s.getEffectivePriority(sharers[i]) == 1);
+	    shared.release(sharers[i]);
+	}
+	shared.release(writer);
+
+	// a thread with 3 of 4 tickets wins about 3 of 4 draws
+	ThreadQueue queue = s.newThreadQueue(false);
+	KThread rich = new KThread().setName("rich");
+	KThread poor = new KThread().setName("poor");
+	s.setPriority(rich, 3);
+	int richWins = 0;
+	for (int i=0; i<4000; i++) {
+	    queue.waitForAccess(rich);
+	    queue.waitForAccess(poor);
+	    KThread winner = queue.nextThread();
+	    if (winner == rich)
+		richWins++;
+	    queue.nextThread();
+	}
+	Lib.assertTrue(richWins > 2800 && richWins < 3200,
+		       "lottery is unfair");
+
+	// thousands of ticket holders, drawn until none are left
+	int numThreads = 5000;
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread().setName("holder" + i);
+	    s.setPriority(threads[i], 1 + i%100);
+	    queue.waitForAccess(threads[i]);
+	}
+	for (int i=0; i<numThreads; i++)
+	    Lib.assertTrue(queue.nextThread() != null);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("LotteryScheduler test passed");
+    }
+}
@@ -0,0 +1,374 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multilevel feedback queue scheduler. Threads move between priority levels
+ * according to how they use the processor, so that threads that mostly wait
+ * for I/O run ahead of threads that compute.
+ *
+ * <p>
+ * Every thread starts at the top level, 0. The next thread to be dequeued is
+ * always the thread that has waited longest at the highest occupied level. A
+ * thread that runs for a whole quantum of its level without blocking, over
+ * however many turns, is demoted one level. The quantum is
+ * <tt>MultilevelFeedbackScheduler.quantum</tt> ticks (one timer interrupt by
+ * default) at the top level, and doubles at each level below. A thread that
+ * blocks, for instance reading from <tt>SynchConsole</tt> or waiting in
+ * <tt>PostOffice.receive()</tt>, is promoted one level when it is woken. And
+ * every <tt>MultilevelFeedbackScheduler.boostInterval</tt> ticks, every
+ * thread returns to the top level, so that threads at the bottom do not
+ * starve.
+ *
+ * <p>
+ * Processor time is measured with <tt>Timer.getTime()</tt>. A thread is
+ * charged when it gives up the processor, which it always does by adding
+ * itself to a queue (to yield or to wait for a resource) or by taking the
+ * next thread from one (to sleep or to finish). A thread added to a queue by
+ * another thread has therefore been blocked.
+ *
+ * <p>
+ * Levels are kept for all queues, not only the ready queue, so the order in
+ * which threads acquire locks and semaphores also favours interactive
+ * threads. Priorities are not transferred.
+ */
+public class MultilevelFeedbackScheduler extends Scheduler {
+    /**
+     * Allocate a new multilevel feedback queue scheduler, reading the number
+     * of levels, the quantum and the boost interval from the configuration.
+     */
+    public MultilevelFeedbackScheduler() {
+	numLevels = Config.getInteger("MultilevelFeedbackScheduler.levels", 3);
+	quantum = Config.getInteger("MultilevelFeedbackScheduler.quantum",
+				    Stats.TimerTicks);
+	boostInterval =
+	    Config.getInteger("MultilevelFeedbackScheduler.boostInterval",
+			      40*Stats.TimerTicks);
+
+	Lib.assertTrue(numLevels > 0 && numLevels <= 31 && quantum > 0 &&
+		       boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new multilevel feedback thread queue.
+     *
+     * @param	transferPriority	ignored. Priorities are not
+     *					transferred.
+     * @return	a new multilevel feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread, which is higher for
+     * higher levels: <tt>numLevels-1</tt> at the top level, and 0 at the
+     * bottom.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return numLevels - 1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Return the quantum of the specified thread's level, less the time it
+     * has already used at that level.
+     */
+    public long getQuantum(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.checkBoost();
+
+	return Math.max(((long) quantum << state.level) - state.used, 1);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Charge the current thread for the processor time it has used since it
+     * was last dispatched or charged, demoting it if it has used up its
+     * quantum, and start a new boost period if the last one is over.
+     */
+    private void chargeCurrentThread(long time) {
+	if (time - lastBoost >= boostInterval) {
+	    lastBoost = time;
+	    boostNumber++;
+	}
+
+	KThread current = KThread.currentThread();
+	if (current == null)
+	    return;
+
+	ThreadState state = getThreadState(current);
+	state.checkBoost();
+
+	state.used += time - state.dispatched;
+	state.dispatched = time;
+
+	if (state.used >= (long) quantum << state.level) {
+	    if (state.level < numLevels-1)
+		state.level++;
+	    state.used = 0;
+	}
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list of waiting threads for each
+     * level, and a bitmap of the levels that have waiting threads.
+     */
+    protected class FeedbackQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long time = Machine.timer().getTime();
+	    chargeCurrentThread(time);
+
+	    ThreadState state = getThreadState(thread);
+	    state.checkBoost();
+
+	    if (thread != KThread.currentThread()) {
+		// woken by another thread, so it was blocked
+		if (state.level > 0)
+		    state.level--;
+		state.used = 0;
+	    }
+
+	    checkBoost();
+	    add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long time = Machine.timer().getTime();
+	    chargeCurrentThread(time);
+	    checkBoost();
+
+	    if (levels == 0)
+		return null;
+
+	    int level = Integer.numberOfTrailingZeros(levels);
+	    ThreadState state = first[level];
+
+	    first[level] = state.next;
+	    if (first[level] == null) {
+		last[level] = null;
+		levels &= ~(1 << level);
+	    }
+	    state.next = null;
+
+	    state.dispatched = time;
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(levels == 0);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<numLevels; level++) {
+		for (ThreadState state=first[level]; state!=null;
+		     state=state.next)
+		    System.out.print(state.thread + " ");
+	    }
+	}
+
+	private void add(ThreadState state) {
+	    int level = state.level;
+
+	    if (last[level] == null)
+		first[level] = state;
+	    else
+		last[level].next = state;
+	    last[level] = state;
+
+	    levels |= 1 << level;
+	}
+
+	/**
+	 * If every thread has been boosted since this queue was last used,
+	 * move its waiting threads to the top level. Each level's list is
+	 * appended in turn, so the threads stay in the order they would
+	 * have been dequeued.
+	 */
+	private void checkBoost() {
+	    if (boost == boostNumber)
+		return;
+
+	    boost = boostNumber;
+
+	    for (int level=1; level<numLevels; level++) {
+		if (first[level] == null)
+		    continue;
+
+		for (ThreadState state=first[level]; state!=null;
+		     state=state.next)
+		    state.checkBoost();
+
+		if (last[0] == null)
+		    first[0] = first[level];
+		else
+		    last[0].next = first[level];
+		last[0] = last[level];
+
+		first[level] = last[level] = null;
+	    }
+
+	    if (first[0] != null)
+		levels = 1;
+	}
+
+	/** The first waiting thread at each level. */
+	private ThreadState[] first = new ThreadState[numLevels];
+	/** The last waiting thread at each level. */
+	private ThreadState[] last = new ThreadState[numLevels];
+	/** A bitmap of the levels that have waiting threads. */
+	private int levels = 0;
+	/** The boost period in which this queue was last used. */
+	private long boost = boostNumber;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and the processor time it
+     * has used at that level.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    dispatched = Machine.timer().getTime();
+	}
+
+	/**
+	 * Return the level of the associated thread.
+	 *
+	 * @return	the level, from 0 at the top.
+	 */
+	public int getLevel() {
+	    checkBoost();
+	    return level;
+	}
+
+	/**
+	 * Return the associated thread to the top level if every thread has
+	 * been boosted since it was last seen.
+	 */
+	void checkBoost() {
+	    if (boost != boostNumber) {
+		boost = boostNumber;
+		level = 0;
+		used = 0;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	KThread thread;
+	/** The level of the associated thread. */
+	int level = 0;
+	/** The processor time used at this level, in ticks. */
+	long used = 0;
+	/** The time the thread was last dispatched or charged. */
+	long dispatched;
+	/** The boost period in which this state was last updated. */
+	long boost = boostNumber;
+	/** The next thread in the same list of a queue. */
+	ThreadState next = null;
+    }
+
+    /**
+     * Test this scheduler, if it is the kernel's scheduler. A thread that
+     * computes without blocking should sink to the bottom level, while a
+     * thread that keeps sleeping on the alarm stays at the top. The deepest
+     * level each reaches is checked, since a boost may come at any time.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof MultilevelFeedbackScheduler))
+	    return;
+
+	final MultilevelFeedbackScheduler s =
+	    (MultilevelFeedbackScheduler) ThreadedKernel.scheduler;
+	final int[] levels = new int[2];
+
+	KThread computer = new KThread(new Runnable() {
+		public void run() {
+		    // interrupts are reenabled often enough for the timer to
+		    // preempt this thread
+		    for (int i=0; i<5*Stats.TimerTicks; i++) {
+			boolean intStatus = Machine.interrupt().disable();
+			int level = s.getThreadState(KThread.currentThread())
+			    .getLevel();
+			levels[0] = Math.max(levels[0], level);
+			Machine.interrupt().restore(intStatus);
+		    }
+		}
+	    }).setName("computer");
+
+	KThread sleeper = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<20; i++) {
+			ThreadedKernel.alarm.waitUntil(Stats.TimerTicks);
+
+			boolean intStatus = Machine.interrupt().disable();
+			int level = s.getThreadState(KThread.currentThread())
+			    .getLevel();
+			levels[1] = Math.max(levels[1], level);
+			Machine.interrupt().restore(intStatus);
+		    }
+		}
+	    }).setName("sleeper");
+
+	computer.fork();
+	sleeper.fork();
+	computer.join();
+	sleeper.join();
+
+	Lib.assertTrue(levels[0] == s.numLevels-1,
+		       "computing thread was not demoted");
+	Lib.assertTrue(levels[1] == 0, "sleeping thread was demoted");
+
+	System.out.println("MultilevelFeedbackScheduler test passed");
+    }
+
+    /** The number of levels. */
+    private int numLevels;
+    /** The quantum of the top level, in ticks. */
+    private int quantum;
+    /** The interval between returning every thread to the top level. */
+    private int boostInterval;
+
+    /** The time at which the current boost period started. */
+    private long lastBoost = 0;
+    /** The number of boost periods that have started. */
+    private long boostNumber = 0;
+}
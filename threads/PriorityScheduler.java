@@ -2,11 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Comparator;
-
+import java.util.ArrayList;
+import java.util.Random;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -27,6 +24,15 @@ import java.util.Comparator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps one FIFO list of waiting threads per priority level, and a
+ * bitmap of the levels that have waiters, so adding a thread and choosing the
+ * next one take constant time. Each thread counts the donations it receives
+ * at each level the same way, and a change in donation is passed along the
+ * chain of owners and the queues they wait in only as far as it changes an
+ * effective priority. Threads that share access to a queue, through
+ * <tt>acquireShared()</tt>, receive the same donation as its owner.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -74,8 +80,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority+1);
 
@@ -89,8 +97,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority-1);
 
@@ -124,32 +134,28 @@ public class PriorityScheduler extends Scheduler {
 	return (ThreadState) thread.schedulingState;
     }
 
+    /**
+     * Return the highest level whose bit is set in the specified bitmap.
+     *
+     * @param	levels	a bitmap with bit <i>p</i> set for each level <i>p</i>.
+     * @return	the highest level set, or -1 if none is.
+     */
+    private static int highestLevel(int levels) {
+	return 31 - Integer.numberOfLeadingZeros(levels);
+    }
+
+    /**
+     * The number of threads that have started waiting, used to keep the
+     * threads at each priority level in the order they started waiting.
+     */
+    private long numWaits = 0;
+
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
-		this.transferPriority = transferPriority;
-			if (transferPriority)
-				waiting = new TreeSet<ThreadState>(new PriorityComparator());
-			else
-				waiting = new TreeSet<ThreadState>(new EffectivePriorityComparator());
-	}
-	
-	public int max(int x, int y) {
-		return x>y ? x : y;
-	}
-	public void donationUpdate(){//update resource owner from donations
-		if (owner != null){
-			owner.updatePriority();//get newest priority
-			for (PriorityQueue p : owner.owned){//iterate through every resource queue
-				if (!p.waiting.isEmpty())
-					for (ThreadState t : p.waiting){
-						t.updatePriority();	// update every depending thread's effective priority 
-						owner.ePriority=max(t.ePriority,owner.ePriority);
-					}
-			}
-		}
+	    this.transferPriority = transferPriority;
 	}
 
 	public void waitForAccess(KThread thread) {
@@ -162,14 +168,27 @@ public class PriorityScheduler extends Scheduler {
 	    getThreadState(thread).acquire(this);
 	}
 
+	public void acquireShared(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquireShared(this);
+	}
+
+	public void release(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).release(this);
+	}
+
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-			//print();
-			ThreadState nextThread = this.pickNextThread();
-			if (nextThread == null)//null if nothing queued
-				return null;
-			nextThread.acquire(this);//acquire nextthread
-			return nextThread.thread;
+
+	    ThreadState nextThread = pickNextThread();
+	    if (nextThread == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    nextThread.acquire(this);
+	    return nextThread.thread;
 	}
 
 	/**
@@ -180,21 +199,135 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    donationUpdate();
-		if (!waiting.isEmpty())
-			return waiting.last();
+	    if (levels == 0)
 		return null;
-		
+
+	    return first[highestLevel(levels)];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 
-			for (Iterator<ThreadState> iterator = waiting.iterator(); iterator.hasNext();) {
-				ThreadState state = iterator.next();
-				System.out.print(state.getThread());
-			}
-			System.out.println();
+	    for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+		for (ThreadState state=first[level]; state!=null;
+		     state=state.next)
+		    System.out.print(state.getThread() + " ");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Add a waiting thread to the list for its effective priority,
+	 * after every thread in the list that started waiting before it.
+	 * Threads that have just started waiting are appended in constant
+	 * time.
+	 */
+	void add(ThreadState state) {
+	    int level = state.ePriority;
+
+	    ThreadState prev = last[level];
+	    while (prev != null && prev.waitNumber > state.waitNumber)
+		prev = prev.prev;
+
+	    state.prev = prev;
+	    state.next = (prev == null) ? first[level] : prev.next;
+
+	    if (prev == null)
+		first[level] = state;
+	    else
+		prev.next = state;
+
+	    if (state.next == null)
+		last[level] = state;
+	    else
+		state.next.prev = state;
+
+	    levels |= 1 << level;
+	}
+
+	/**
+	 * Remove a waiting thread from the list for its effective priority.
+	 */
+	void remove(ThreadState state) {
+	    int level = state.ePriority;
+
+	    if (state.prev == null)
+		first[level] = state.next;
+	    else
+		state.prev.next = state.next;
+
+	    if (state.next == null)
+		last[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+
+	    state.prev = state.next = null;
+
+	    if (first[level] == null)
+		levels &= ~(1 << level);
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, moving the
+	 * priority its waiters donate from the previous owner. A thread
+	 * sharing access that becomes the owner no longer shares it.
+	 */
+	void setOwner(ThreadState newOwner) {
+	    if (!transferPriority || owner == newOwner)
+		return;
+
+	    ThreadState oldOwner = owner;
+	    owner = newOwner;
+
+	    // a sharer already receives this queue's donation
+	    if (newOwner != null && !removeSharer(newOwner))
+		newOwner.changeDonation(-1, donated);
+	    if (oldOwner != null)
+		oldOwner.changeDonation(donated, -1);
+	}
+
+	/**
+	 * Remove the specified thread from the threads sharing access, if it
+	 * is one of them.
+	 *
+	 * @return	<tt>true</tt> if the thread was sharing access.
+	 */
+	boolean removeSharer(ThreadState state) {
+	    return sharers != null && sharers.remove(state);
+	}
+
+	/**
+	 * Pass a change in the highest effective priority of this queue's
+	 * waiters on to its owner and the threads sharing access, and from
+	 * there along the chains of queues and owners, until an effective
+	 * priority stays the same.
+	 */
+	void updateDonation() {
+	    PriorityQueue queue = this;
+	    int depth = 0;
+
+	    while (queue != null && queue.transferPriority) {
+		int top = highestLevel(queue.levels);
+		if (top == queue.donated)
+		    break;
+
+		int old = queue.donated;
+		queue.donated = top;
+
+		if (queue.sharers != null && !queue.sharers.isEmpty()) {
+		    depth++;
+		    for (ThreadState sharer : queue.sharers)
+			sharer.changeDonation(old, top);
+		}
+
+		if (queue.owner == null)
+		    break;
+
+		depth++;
+		queue = queue.owner.updateDonation(old, top);
+	    }
+
+	    SchedulerProfile.donation(depth);
 	}
 
 	/**
@@ -202,10 +335,27 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
-     /** The main treeset of waiting threads */	   
-	TreeSet<ThreadState> waiting;
-    /** The threadstate indicating which thread acquires priority */	   
+
+	/** The first waiting thread at each priority level. */
+	private ThreadState[] first = new ThreadState[priorityMaximum+1];
+	/** The last waiting thread at each priority level. */
+	private ThreadState[] last = new ThreadState[priorityMaximum+1];
+	/** A bitmap of the priority levels that have waiting threads. */
+	private int levels = 0;
+
+	/** The thread that owns this queue, if it transfers priority. */
 	ThreadState owner = null;
+	/**
+	 * The threads that share access to this queue, if it transfers
+	 * priority, or <tt>null</tt> if none ever has.
+	 */
+	ArrayList<ThreadState> sharers = null;
+	/**
+	 * The priority this queue currently donates to its owner and sharers,
+	 * the highest effective priority of its waiters, or -1 if it has no
+	 * waiters.
+	 */
+	private int donated = -1;
     }
 
     /**
@@ -227,9 +377,16 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    setPriority(priorityDefault);
 	}
-	public KThread getThread() {	
-		return thread;	
+
+	/**
+	 * Return the associated thread.
+	 *
+	 * @return	the associated thread.
+	 */
+	public KThread getThread() {
+	    return thread;
 	}
+
 	/**
 	 * Return the priority of the associated thread.
 	 *
@@ -258,12 +415,10 @@ public class PriorityScheduler extends Scheduler {
 		return;
 	    
 	    this.priority = priority;
-		this.ePriority = this.priority;
-			if (waitingFor != null) {
-				waitingFor.waiting.remove(this);
-				waitingFor.waiting.add(this);
-				waitingFor.donationUpdate();//process new priority
-			}
+
+	    PriorityQueue queue = updateEffectivePriority();
+	    if (queue != null)
+		queue.updateDonation();
 	}
 
 	/**
@@ -279,20 +434,15 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    if (waitingFor != null)	{
-			waitingFor.waiting.remove(this);
-		}
-		this.waittime = 0;
-		for (ThreadState t : waitQueue.waiting)	{
-			t.waittime++;//increment time for other threads in queue
-		}
-		waitQueue.waiting.add(this);
-		waitingFor = waitQueue;
-		if (owned != null && owned.contains(waitingFor)){
-			owned.remove(waitingFor);
-		}
-		waitQueue.donationUpdate();//process donations in queue
-	
+	    Lib.assertTrue(waitingFor == null);
+
+	    // a thread waiting for a resource does not hold it
+	    release(waitQueue);
+
+	    waitingFor = waitQueue;
+	    waitNumber = numWaits++;
+	    waitQueue.add(this);
+	    waitQueue.updateDonation();
 	}
 
 	/**
@@ -306,113 +456,359 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-		if (waitingFor != null)	{// stop waiting, since thread has acquired it
-			if (waitingFor == waitQueue){
-				waitingFor.waiting.remove(this);
-				waitingFor = null;
-			}
-		}
-		waitQueue.waiting.remove(this);
-		owned.add(waitQueue);//update set of acquired resources
+	    if (waitingFor == waitQueue) {
+		waitQueue.remove(this);
+		waitingFor = null;
+		waitQueue.updateDonation();
+	    }
 
-		if (waitQueue.owner != null && waitQueue.owner != this){
-			// replace previous resource owner and update its priority
-			waitQueue.owner.owned.remove(waitQueue);
-			waitQueue.owner.updatePriority();
-		}
-		waitQueue.owner = this;
-		waitQueue.donationUpdate();	// process donations, since new thread acquired the resource
-	}	
-	public void updatePriority(){
-			this.ePriority = this.priority;
-			if (owned != null)
-				for (PriorityQueue Q : owned){
-					for (ThreadState t : Q.waiting){//depending threads
-						if(t.getEffectivePriority()>this.ePriority){
-							this.ePriority = t.getEffectivePriority();
-							if (waitingFor != null && waitingFor.owner != null)
-								waitingFor.owner.updatePriority();//update owners priority
-						}
-					}
-				}
-		}
-		/** The thread with which this object is associated. */	   
-		public KThread thread;
-		/** The priority of the associated thread. */
-		protected int priority = priorityDefault;
-		/** The effective priority of the associated thread. */
-		public int ePriority = priorityDefault;
-		/** The time thread began waiting. */
-		public int waittime =0;
-		/** The ThreadQueue that the associated thread waiting for. */
-		PriorityQueue waitingFor= null;
-		/** The hashset sorting donated priorities  */
-		HashSet<PriorityQueue> owned = new HashSet<PriorityQueue>();
+	    waitQueue.setOwner(this);
 	}
-    
-   
-	
-	class PriorityComparator implements Comparator<ThreadState>
-	{
-		@Override
-		public int compare(ThreadState t1, ThreadState t2) {
-			if (t1.getPriority() == t2.getPriority()) return t1.waittime - t2.waittime;
-			else return t1.getPriority() - t2.getPriority();
-		}
+
+	/**
+	 * Called when the associated thread has received access to whatever is
+	 * guarded by <tt>waitQueue</tt>, which it shares with other threads.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquireShared
+	 */
+	public void acquireShared(PriorityQueue waitQueue) {
+	    Lib.assertTrue(waitingFor != waitQueue);
+
+	    if (!waitQueue.transferPriority || waitQueue.owner == this ||
+		(waitQueue.sharers != null && waitQueue.sharers.contains(this)))
+		return;
+
+	    if (waitQueue.sharers == null)
+		waitQueue.sharers = new ArrayList<ThreadState>();
+	    waitQueue.sharers.add(this);
+
+	    changeDonation(-1, waitQueue.donated);
+	}
+
+	/**
+	 * Called when the associated thread no longer has access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#release
+	 */
+	public void release(PriorityQueue waitQueue) {
+	    if (waitQueue.owner == this)
+		waitQueue.setOwner(null);
+	    else if (waitQueue.removeSharer(this))
+		changeDonation(waitQueue.donated, -1);
+	}
+
+	/**
+	 * Replace a donation from a queue this thread owns or shares, and pass
+	 * on any change in effective priority.
+	 *
+	 * @param	oldLevel	the priority donated until now, or -1.
+	 * @param	newLevel	the priority donated from now on, or -1.
+	 */
+	void changeDonation(int oldLevel, int newLevel) {
+	    PriorityQueue queue = updateDonation(oldLevel, newLevel);
+	    if (queue != null)
+		queue.updateDonation();
+	}
+
+	/**
+	 * Replace a donation, without passing on the change.
+	 *
+	 * @return	the queue this thread waits in if its effective priority
+	 *		changed, as for <tt>updateEffectivePriority()</tt>.
+	 */
+	PriorityQueue updateDonation(int oldLevel, int newLevel) {
+	    if (oldLevel >= 0)
+		removeDonation(oldLevel);
+	    if (newLevel >= 0)
+		addDonation(newLevel);
+
+	    return updateEffectivePriority();
+	}
+
+	/**
+	 * Count a donation of the specified priority, from a queue this
+	 * thread owns.
+	 */
+	void addDonation(int level) {
+	    if (donations[level]++ == 0)
+		donationLevels |= 1 << level;
+	}
+
+	/**
+	 * Forget a donation counted by <tt>addDonation()</tt>.
+	 */
+	void removeDonation(int level) {
+	    if (--donations[level] == 0)
+		donationLevels &= ~(1 << level);
+	}
+
+	/**
+	 * Recompute the effective priority from the priority and the highest
+	 * donation. If it changes while this thread waits, move the thread to
+	 * its new level.
+	 *
+	 * @return	the queue this thread waits in if its effective priority
+	 *		changed, since that queue may now donate a different
+	 *		priority; otherwise <tt>null</tt>.
+	 */
+	PriorityQueue updateEffectivePriority() {
+	    int effective = Math.max(priority, highestLevel(donationLevels));
+	    if (effective == ePriority)
+		return null;
+
+	    if (waitingFor == null) {
+		ePriority = effective;
+		return null;
+	    }
+
+	    waitingFor.remove(this);
+	    ePriority = effective;
+	    waitingFor.add(this);
+	    return waitingFor;
 	}
 
-	class EffectivePriorityComparator implements Comparator<ThreadState>
-	{
-		@Override
-		public int compare(ThreadState t1, ThreadState t2) {
-			if (t1.getEffectivePriority() == t2.getEffectivePriority()) return t1.waittime - t2.waittime;
-			else return t1.getEffectivePriority() - t2.getEffectivePriority();
+	/** The thread with which this object is associated. */	   
+	public KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = priorityDefault;
+	/** The effective priority of the associated thread. */
+	public int ePriority = priorityDefault;
+
+	/** The queue the associated thread is waiting in, if any. */
+	PriorityQueue waitingFor = null;
+	/** Orders the threads waiting at the same level. */
+	private long waitNumber;
+	/** The neighbours of this thread in its queue's list. */
+	private ThreadState prev = null, next = null;
+
+	/**
+	 * The number of owned queues donating each priority level, and a
+	 * bitmap of the levels with a nonzero count.
+	 */
+	private int[] donations = new int[priorityMaximum+1];
+	private int donationLevels = 0;
+    }
+
+    /**
+     * Test this scheduler by printing the effective priorities of a few
+     * threads and queues.
+     */
+    public static void selfTest() {
+	System.out.println("PriorityScheduler test");
+	PriorityScheduler s = new PriorityScheduler();
+	ThreadQueue queue1 = s.newThreadQueue(true);
+	ThreadQueue queue2 = s.newThreadQueue(true);
+	ThreadQueue queue3 = s.newThreadQueue(true);
+	
+	KThread thread1 = new KThread();
+	KThread thread2 = new KThread();
+	KThread thread3 = new KThread();
+	thread1.setName("thread1");
+	thread2.setName("thread2");
+	thread3.setName("thread3");
+
+	boolean intStatus = Machine.interrupt().disable();
+	
+	queue3.acquire(thread1);
+	queue1.acquire(thread1);
+	queue1.waitForAccess(thread2);
+	queue2.acquire(thread3);
+	queue2.waitForAccess(thread1);
+	System.out.println("thread1 EP="+s.getThreadState(thread1).getEffectivePriority());
+	System.out.println("thread2 EP="+s.getThreadState(thread2).getEffectivePriority());
+	System.out.println("thread4 EP="+s.getThreadState(thread3).getEffectivePriority());
+	
+	s.getThreadState(thread1).setPriority(1);
+	s.getThreadState(thread2).setPriority(3);
+	s.getThreadState(thread3).setPriority(4);
+	
+	System.out.println("Thread1: 1, Thread2: 3, Thread3:4");
+	System.out.println("thread1 EP="+s.getThreadState(thread1).getEffectivePriority());
+	System.out.println("thread1 P="+s.getThreadState(thread1).getPriority());
+	System.out.println("thread2 EP="+s.getThreadState(thread2).getEffectivePriority());
+	System.out.println("thread4 EP="+s.getThreadState(thread3).getEffectivePriority());
+	
+	s.getThreadState(thread1).setPriority(4);
+	s.getThreadState(thread2).setPriority(2);
+	s.getThreadState(thread3).setPriority(1);
+	
+	System.out.println("Thread1: 4, Thread2: 3, Thread3:1");
+	System.out.println("thread1 EP="+s.getThreadState(thread1).getEffectivePriority());
+	System.out.println("thread2 EP="+s.getThreadState(thread2).getEffectivePriority());
+	System.out.println("thread4 EP="+s.getThreadState(thread3).getEffectivePriority());
+	
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Check a long chain of donations, the order in which hundreds of
+     * threads leave one queue, and the effective priority of every thread
+     * after each of many random operations on locks, if this is the kernel's
+     * scheduler. Unlike <tt>selfTest()</tt>, this prints only a line saying
+     * it passed.
+     */
+    public static void stressTest() {
+	if (!(ThreadedKernel.scheduler instanceof PriorityScheduler))
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	PriorityScheduler s = new PriorityScheduler();
+
+	// a chain of locks, each held by a thread waiting for the previous
+	// one; a donation at the end must reach the start, and go away again
+	int depth = 200;
+	ThreadQueue[] chain = new ThreadQueue[depth];
+	KThread[] holders = new KThread[depth+1];
+	for (int i=0; i<=depth; i++)
+	    holders[i] = new KThread().setName("holder" + i);
+	for (int i=0; i<depth; i++) {
+	    chain[i] = s.newThreadQueue(true);
+	    chain[i].acquire(holders[i]);
+	    if (i > 0)
+		chain[i-1].waitForAccess(holders[i]);
+	}
+	chain[depth-1].waitForAccess(holders[depth]);
+
+	s.setPriority(holders[depth], priorityMaximum);
+	Lib.assertTrue(s.getEffectivePriority(holders[0]) == priorityMaximum);
+	s.setPriority(holders[depth], priorityMinimum);
+	Lib.assertTrue(s.getEffectivePriority(holders[0]) == priorityDefault);
+
+	// threads leave a queue by priority, then in the order they came
+	int numThreads = 500;
+	Random random = new Random(0);
+	ThreadQueue queue = s.newThreadQueue(false);
+	KThread[] waiters = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    waiters[i] = new KThread().setName("waiter" + i);
+	    s.setPriority(waiters[i], random.nextInt(priorityMaximum+1));
+	    queue.waitForAccess(waiters[i]);
+	}
+	int lastPriority = priorityMaximum, lastIndex = -1;
+	for (int i=0; i<numThreads; i++) {
+	    KThread thread = queue.nextThread();
+	    int priority = s.getPriority(thread);
+	    int index = Integer.parseInt(thread.getName().substring(6));
+	    Lib.assertTrue(priority < lastPriority ||
+			   (priority == lastPriority && index > lastIndex));
+	    lastPriority = priority;
+	    lastIndex = index;
+	}
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// random operations on a smaller set of threads, checked against
+	// effective priorities computed from scratch
+	numThreads = 100;
+	int numQueues = 20;
+	ThreadQueue[] queues = new ThreadQueue[numQueues];
+	int[] owners = new int[numQueues];
+	boolean[][] sharers = new boolean[numQueues][numThreads];
+	int[] waitingFor = new int[numThreads];
+	for (int q=0; q<numQueues; q++) {
+	    queues[q] = s.newThreadQueue(true);
+	    owners[q] = -1;
+	}
+	for (int t=0; t<numThreads; t++)
+	    waitingFor[t] = -1;
+
+	for (int op=0; op<10000; op++) {
+	    int t = random.nextInt(numThreads);
+	    int q = random.nextInt(numQueues);
+
+	    switch (random.nextInt(6)) {
+	    case 0:
+		s.setPriority(waiters[t], random.nextInt(priorityMaximum+1));
+		break;
+	    case 1:
+		if (waitingFor[t] == -1 && owners[q] != -1 &&
+		    !sharers[q][t] &&
+		    !waitsFor(q, t, owners, sharers, waitingFor)) {
+		    queues[q].waitForAccess(waiters[t]);
+		    waitingFor[t] = q;
+		}
+		break;
+	    case 2:
+		if (owners[q] == -1 && waitingFor[t] == -1) {
+		    queues[q].acquire(waiters[t]);
+		    owners[q] = t;
+		    sharers[q][t] = false;
+		}
+		break;
+	    case 3:
+		if (owners[q] != -1) {
+		    KThread next = queues[q].nextThread();
+		    owners[q] = -1;
+		    for (int i=0; i<numThreads; i++) {
+			if (waiters[i] == next) {
+			    owners[q] = i;
+			    waitingFor[i] = -1;
+			}
+		    }
+		}
+		break;
+	    case 4:
+		if (waitingFor[t] == -1 && owners[q] != t) {
+		    queues[q].acquireShared(waiters[t]);
+		    sharers[q][t] = true;
 		}
+		break;
+	    case 5:
+		queues[q].release(waiters[t]);
+		if (owners[q] == t)
+		    owners[q] = -1;
+		sharers[q][t] = false;
+		break;
+	    }
+
+	    // each waiting thread donates to the owner and the sharers of its
+	    // queue, until nothing changes
+	    int[] expected = new int[numThreads];
+	    for (int i=0; i<numThreads; i++)
+		expected[i] = s.getPriority(waiters[i]);
+	    for (boolean changed=true; changed; ) {
+		changed = false;
+		for (int i=0; i<numThreads; i++) {
+		    if (waitingFor[i] == -1)
+			continue;
+		    for (int h=0; h<numThreads; h++) {
+			if ((owners[waitingFor[i]] == h ||
+			     sharers[waitingFor[i]][h]) &&
+			    expected[i] > expected[h]) {
+			    expected[h] = expected[i];
+			    changed = true;
+			}
+		    }
+		}
+	    }
+
+	    for (int i=0; i<numThreads; i++)
+		Lib.assertTrue(s.getEffectivePriority(waiters[i]) == expected[i],
+			       "wrong effective priority");
 	}
-	public static void selfTest() {
-		System.out.println("PriorityScheduler test");
-		PriorityScheduler s = new PriorityScheduler();
-		ThreadQueue queue1 = s.newThreadQueue(true);
-		ThreadQueue queue2 = s.newThreadQueue(true);
-		ThreadQueue queue3 = s.newThreadQueue(true);
-		
-		KThread thread1 = new KThread();
-		KThread thread2 = new KThread();
-		KThread thread3 = new KThread();
-		thread1.setName("thread1");
-		thread2.setName("thread2");
-		thread3.setName("thread3");
-
-		boolean intStatus = Machine.interrupt().disable();
-		
-		queue3.acquire(thread1);
-		queue1.acquire(thread1);
-		queue1.waitForAccess(thread2);
-		queue2.acquire(thread3);
-		queue2.waitForAccess(thread1);
-		System.out.println("thread1 EP="+s.getThreadState(thread1).getEffectivePriority());
-		System.out.println("thread2 EP="+s.getThreadState(thread2).getEffectivePriority());
-		System.out.println("thread4 EP="+s.getThreadState(thread3).getEffectivePriority());
-		
-		s.getThreadState(thread1).setPriority(1);
-		s.getThreadState(thread2).setPriority(3);
-		s.getThreadState(thread3).setPriority(4);
-		
-		System.out.println("Thread1: 1, Thread2: 3, Thread3:4");
-		System.out.println("thread1 EP="+s.getThreadState(thread1).getEffectivePriority());
-		System.out.println("thread1 P="+s.getThreadState(thread1).getPriority());
-		System.out.println("thread2 EP="+s.getThreadState(thread2).getEffectivePriority());
-		System.out.println("thread4 EP="+s.getThreadState(thread3).getEffectivePriority());
-		
-		s.getThreadState(thread1).setPriority(4);
-		s.getThreadState(thread2).setPriority(2);
-		s.getThreadState(thread3).setPriority(1);
-		
-		System.out.println("Thread1: 4, Thread2: 3, Thread3:1");
-		System.out.println("thread1 EP="+s.getThreadState(thread1).getEffectivePriority());
-		System.out.println("thread2 EP="+s.getThreadState(thread2).getEffectivePriority());
-		System.out.println("thread4 EP="+s.getThreadState(thread3).getEffectivePriority());
-		
-		Machine.interrupt().restore(intStatus);
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("PriorityScheduler stress test passed");
+    }
+
+    /**
+     * Tests whether a thread holding queue <tt>q</tt>, as its owner or a
+     * sharer, is thread <tt>target</tt> or is waiting for it, directly or
+     * through the holders of the queues it waits in. The stress test uses
+     * this to avoid deadlock cycles.
+     */
+    private static boolean waitsFor(int q, int target, int[] owners,
+				    boolean[][] sharers, int[] waitingFor) {
+	for (int t=0; t<waitingFor.length; t++) {
+	    if (owners[q] != t && !sharers[q][t])
+		continue;
+	    if (t == target ||
+		(waitingFor[t] != -1 &&
+		 waitsFor(waitingFor[t], target, owners, sharers, waitingFor)))
+		return true;
 	}
+	return false;
+    }
 }
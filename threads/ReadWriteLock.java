@@ -0,0 +1,386 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that many <i>readers</i> may hold at
+ * once, or a single <i>writer</i> may hold alone. It suits data that is read
+ * far more often than it is changed, since readers do not wait for each
+ * other.
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: atomically wait until no writer holds the lock,
+ * and no writer is waiting for it, and then hold it as a reader.
+ * <li><tt>acquireWrite()</tt>: atomically wait until no thread holds the
+ * lock, and then hold it as the writer.
+ * <li><tt>releaseRead()</tt> and <tt>releaseWrite()</tt>: give up the lock,
+ * handing it on to waiting threads if possible.
+ * </ul>
+ *
+ * <p>
+ * When the writer releases the lock and both readers and writers are waiting,
+ * a lock with <i>writer preference</i> hands it to the next writer, so
+ * writers are never held up by readers that arrive after them, but readers
+ * may starve while writers keep coming. A <i>fair</i> lock hands it to every
+ * waiting reader at once, so readers and writers take turns, and neither
+ * starves. In both modes, the last reader to release the lock hands it to the
+ * next writer.
+ *
+ * <p>
+ * The waiting threads are kept in two thread queues that transfer priority,
+ * and every thread holding the lock shares access to both, through
+ * <tt>ThreadQueue.acquireShared()</tt>. So a writer waiting for readers
+ * donates its priority to all of them, and a reader waiting for a writer
+ * donates to the writer.
+ *
+ * <p>
+ * Only a thread that holds a lock may release it, and a thread may not
+ * acquire a lock it already holds.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new reader-writer lock with writer preference. The lock
+     * will initially be free.
+     */
+    public ReadWriteLock() {
+	this(false);
+    }
+
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     *
+     * @param	fair	<tt>true</tt> if readers and writers should take
+     *			turns, or <tt>false</tt> for writer preference.
+     */
+    public ReadWriteLock(boolean fair) {
+	this.fair = fair;
+    }
+
+    /**
+     * Atomically acquire this lock as a reader. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isReadHeldByCurrentThread() &&
+		       !isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || writersWaiting > 0) {
+	    readersWaiting++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    grant(thread);
+	    readers.add(thread);
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock as a reader. If this was the last reader,
+     * the next waiting writer receives the lock.
+     */
+    public void releaseRead() {
+	Lib.assertTrue(isReadHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	readers.remove(thread);
+	revoke(thread);
+
+	if (readers.isEmpty() && writersWaiting > 0)
+	    wakeWriter();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock as the writer. The current thread must
+     * not already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isReadHeldByCurrentThread() &&
+		       !isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || !readers.isEmpty()) {
+	    writersWaiting++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    grant(thread);
+	    writer = thread;
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock as the writer. Depending on the mode, and
+     * on which threads are waiting, either the next writer or every waiting
+     * reader receives the lock.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	revoke(writer);
+	writer = null;
+
+	if (writersWaiting > 0 && (!fair || readersWaiting == 0))
+	    wakeWriter();
+	else if (readersWaiting > 0)
+	    wakeReaders();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock as a reader.
+     *
+     * @return	true if the current thread holds this lock as a reader.
+     */
+    public boolean isReadHeldByCurrentThread() {
+	return readers.contains(KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock as the writer.
+     *
+     * @return	true if the current thread holds this lock as the writer.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Hand the lock to the next waiting writer.
+     */
+    private void wakeWriter() {
+	KThread thread = writeQueue.nextThread();
+	Lib.assertTrue(thread != null);
+	writersWaiting--;
+
+	grant(thread);
+	writer = thread;
+	thread.ready();
+    }
+
+    /**
+     * Hand the lock to every waiting reader.
+     */
+    private void wakeReaders() {
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    readersWaiting--;
+
+	    // each reader shares the queue, rather than the next reader
+	    // dequeued taking ownership of it away
+	    readQueue.release(thread);
+	    grant(thread);
+	    readers.add(thread);
+	    thread.ready();
+	}
+
+	Lib.assertTrue(readersWaiting == 0);
+    }
+
+    /**
+     * Let the threads waiting in both queues donate to a thread that has
+     * received the lock.
+     */
+    private void grant(KThread thread) {
+	readQueue.acquireShared(thread);
+	writeQueue.acquireShared(thread);
+    }
+
+    /**
+     * Stop the threads waiting in both queues donating to a thread that has
+     * released the lock.
+     */
+    private void revoke(KThread thread) {
+	readQueue.release(thread);
+	writeQueue.release(thread);
+    }
+
+    /**
+     * Test this class. Readers should hold the lock together, and writers
+     * alone. Once a writer releases the lock, a waiting writer should go
+     * before a waiting reader with writer preference, and after it in a fair
+     * lock. With a priority scheduler, a waiting writer should donate its
+     * priority to every reader.
+     */
+    public static void selfTest() {
+	for (final boolean fair : new boolean[] { false, true }) {
+	    final ReadWriteLock lock = new ReadWriteLock(fair);
+	    final int[] active = new int[3];	// readers, writers, max readers
+
+	    KThread[] threads = new KThread[8];
+	    for (int i=0; i<threads.length; i++) {
+		final boolean isWriter = (i % 4 == 3);
+		threads[i] = new KThread(new Runnable() {
+			public void run() {
+			    for (int j=0; j<10; j++) {
+				if (isWriter) {
+				    lock.acquireWrite();
+				    Lib.assertTrue(active[0] == 0 &&
+						   active[1] == 0);
+				    active[1]++;
+				    KThread.yield();
+				    Lib.assertTrue(active[0] == 0 &&
+						   active[1] == 1);
+				    active[1]--;
+				    lock.releaseWrite();
+				}
+				else {
+				    lock.acquireRead();
+				    Lib.assertTrue(active[1] == 0);
+				    active[0]++;
+				    active[2] = Math.max(active[2], active[0]);
+				    KThread.yield();
+				    Lib.assertTrue(active[1] == 0);
+				    active[0]--;
+				    lock.releaseRead();
+				}
+				KThread.yield();
+			    }
+			}
+		    }).setName((isWriter ? "writer" : "reader") + i);
+		threads[i].fork();
+	    }
+	    for (int i=0; i<threads.length; i++)
+		threads[i].join();
+
+	    Lib.assertTrue(active[2] > 1, "readers never shared the lock");
+
+	    // with the lock held for writing, queue a reader and then a writer
+	    final ArrayList<String> order = new ArrayList<String>();
+	    lock.acquireWrite();
+
+	    KThread reader = new KThread(new Runnable() {
+		    public void run() {
+			lock.acquireRead();
+			order.add("reader");
+			lock.releaseRead();
+		    }
+		}).setName("reader");
+	    KThread writer = new KThread(new Runnable() {
+		    public void run() {
+			lock.acquireWrite();
+			order.add("writer");
+			lock.releaseWrite();
+		    }
+		}).setName("writer");
+
+	    reader.fork();
+	    while (lock.readersWaiting == 0)
+		KThread.yield();
+	    writer.fork();
+	    while (lock.writersWaiting == 0)
+		KThread.yield();
+
+	    lock.releaseWrite();
+	    reader.join();
+	    writer.join();
+
+	    Lib.assertTrue(order.get(0).equals(fair ? "reader" : "writer"),
+			   "wrong thread received the lock first");
+	}
+
+	if (ThreadedKernel.scheduler.getClass() == PriorityScheduler.class)
+	    donationTest();
+
+	System.out.println("ReadWriteLock test passed");
+    }
+
+    /**
+     * Check that a high-priority writer waiting for two readers raises both
+     * of their effective priorities, and that they drop back once it has the
+     * lock.
+     */
+    private static void donationTest() {
+	final ReadWriteLock lock = new ReadWriteLock();
+	final Semaphore done = new Semaphore(0);
+	KThread[] readers = new KThread[2];
+
+	for (int i=0; i<2; i++) {
+	    readers[i] = new KThread(new Runnable() {
+		    public void run() {
+			lock.acquireRead();
+			done.P();
+			lock.releaseRead();
+		    }
+		}).setName("reader" + i);
+	    readers[i].fork();
+	}
+	while (lock.readers.size() < 2)
+	    KThread.yield();
+
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireWrite();
+		    lock.releaseWrite();
+		}
+	    }).setName("writer");
+
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(writer,
+					     PriorityScheduler.priorityMaximum);
+	Machine.interrupt().restore(intStatus);
+
+	writer.fork();
+	while (lock.writersWaiting == 0)
+	    KThread.yield();
+
+	intStatus = Machine.interrupt().disable();
+	for (int i=0; i<2; i++) {
+	    Lib.assertTrue(ThreadedKernel.scheduler
+			   .getEffectivePriority(readers[i]) ==
+			   PriorityScheduler.priorityMaximum,
+			   "waiting writer did not donate to every reader");
+	}
+	Machine.interrupt().restore(intStatus);
+
+	done.V();
+	done.V();
+	writer.join();
+	for (int i=0; i<2; i++)
+	    readers[i].join();
+
+	intStatus = Machine.interrupt().disable();
+	for (int i=0; i<2; i++) {
+	    Lib.assertTrue(ThreadedKernel.scheduler
+			   .getEffectivePriority(readers[i]) ==
+			   PriorityScheduler.priorityDefault);
+	}
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private boolean fair;
+
+    /** The threads holding this lock as readers. */
+    private ArrayList<KThread> readers = new ArrayList<KThread>();
+    /** The thread holding this lock as the writer, if any. */
+    private KThread writer = null;
+
+    private int readersWaiting = 0, writersWaiting = 0;
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
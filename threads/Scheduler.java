@@ -52,6 +52,19 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads that are ready to run. <tt>KThread</tt>
+     * calls this once, when threading starts. By default this is
+     * <tt>newThreadQueue(false)</tt>; a scheduler that accounts for the
+     * processor time each thread receives can return a queue that does its
+     * accounting, and keep that accounting out of every other queue.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +167,29 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Decide whether the timer should preempt the current thread. Called by
+     * the timer interrupt handler, with interrupts disabled. By default,
+     * every timer interrupt preempts the current thread.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean shouldPreempt() {
+	return true;
+    }
+
+    /**
+     * Return the number of ticks the specified thread may run before the
+     * timer preempts it, if other threads are ready. Only used when the
+     * timer is armed for each thread dispatched, rather than interrupting
+     * periodically. Called with interrupts disabled. By default, the period
+     * of the timer.
+     *
+     * @param	thread	the thread about to run.
+     * @return	the thread's quantum, in ticks.
+     */
+    public long getQuantum(KThread thread) {
+	return Stats.TimerTicks;
+    }
 }
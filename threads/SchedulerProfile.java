@@ -0,0 +1,319 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Measures how the scheduler treats threads, when the
+ * <tt>Scheduler.profile</tt> key is set, and prints the measurements when
+ * Nachos halts. Since every scheduler's ready queue is used the same way, the
+ * measurements are taken where <tt>KThread</tt> uses it, and work with any
+ * scheduler:
+ *
+ * <ul>
+ * <li>the scheduling delay: the ticks each thread spends in the ready queue,
+ * from <tt>ready()</tt> until it is dispatched;
+ * <li>the length of the ready queue, weighted by the ticks it has that
+ * length;
+ * <li>the processor ticks used by each thread, from when it is dispatched
+ * until another thread is;
+ * <li>the depth of the chains that priority donation walks, in the
+ * schedulers that donate.
+ * </ul>
+ *
+ * <p>
+ * Times are measured with <tt>Timer.getTime()</tt>. Delays, lengths and
+ * depths are kept in histograms with power-of-two buckets.
+ */
+public class SchedulerProfile {
+    private SchedulerProfile() {
+    }
+
+    /**
+     * Start profiling, if the <tt>Scheduler.profile</tt> key is set. Called
+     * by <tt>ThreadedKernel.initialize()</tt> before threading starts.
+     */
+    static void initialize() {
+	if (!Config.getBoolean("Scheduler.profile", false))
+	    return;
+
+	enabled = true;
+	lastLengthChange = Machine.timer().getTime();
+
+	Machine.addHaltReport(new Runnable() {
+		public void run() { print(); }
+	    });
+    }
+
+    /**
+     * Discard the measurements taken so far, so that the report covers only
+     * what runs afterwards. Called by <tt>ThreadedKernel.run()</tt>, so that
+     * the self tests are not measured. The threads that are running or ready
+     * keep their dispatch and ready times, and the ready queue its length.
+     */
+    static void reset() {
+	if (!enabled)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long time = Machine.timer().getTime();
+
+	for (ThreadRecord record : records) {
+	    record.dispatches = 0;
+	    record.cpuTicks = 0;
+	    record.delayTicks = record.maxDelay = 0;
+	    record.listed = false;
+	}
+	records.clear();
+
+	KThread current = KThread.currentThread();
+	if (current != null)
+	    getRecord(current).dispatched = time;
+
+	delays = new long[64];
+	numDelays = totalDelay = 0;
+
+	lengthTicks = new long[64];
+	lastLengthChange = time;
+
+	depths = new long[64];
+	numDonations = totalDepth = 0;
+	maxDepth = 0;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Record that the specified thread has been added to the ready queue.
+     * Called by <tt>KThread.ready()</tt>, with interrupts disabled.
+     *
+     * @param	thread	the thread that is now ready.
+     */
+    static void ready(KThread thread) {
+	if (!enabled)
+	    return;
+
+	long time = Machine.timer().getTime();
+
+	getRecord(thread).readyTime = time;
+	changeLength(time, 1);
+    }
+
+    /**
+     * Record that the processor is being dispatched from the current thread
+     * to the specified thread. Called by <tt>KThread.runNextThread()</tt>,
+     * with interrupts disabled.
+     *
+     * @param	next	the thread to run next.
+     * @param	fromReadyQueue	<tt>true</tt> if <tt>next</tt> was taken from
+     *				the ready queue, rather than being the idle
+     *				thread.
+     */
+    static void dispatch(KThread next, boolean fromReadyQueue) {
+	if (!enabled)
+	    return;
+
+	long time = Machine.timer().getTime();
+
+	KThread current = KThread.currentThread();
+	if (current != null) {
+	    ThreadRecord record = getRecord(current);
+	    record.cpuTicks += time - record.dispatched;
+	}
+
+	ThreadRecord record = getRecord(next);
+	record.dispatched = time;
+	record.dispatches++;
+
+	if (fromReadyQueue) {
+	    long delay = time - record.readyTime;
+	    record.delayTicks += delay;
+	    record.maxDelay = Math.max(record.maxDelay, delay);
+	    delays[bucket(delay)]++;
+	    numDelays++;
+	    totalDelay += delay;
+
+	    changeLength(time, -1);
+	}
+    }
+
+    /**
+     * Record that a change in a donated priority (or in transferred tickets)
+     * was passed along a chain of the specified number of queues.
+     *
+     * @param	depth	the number of queues whose owners were updated, or 0
+     *			if nothing was donated.
+     */
+    static void donation(int depth) {
+	if (!enabled || depth == 0)
+	    return;
+
+	depths[bucket(depth)]++;
+	numDonations++;
+	totalDepth += depth;
+	maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private static ThreadRecord getRecord(KThread thread) {
+	if (thread.profileRecord == null)
+	    thread.profileRecord = new ThreadRecord(thread.toString());
+
+	// a thread's record is listed again the first time it is used after
+	// a reset
+	if (!thread.profileRecord.listed) {
+	    thread.profileRecord.listed = true;
+	    records.add(thread.profileRecord);
+	}
+
+	return thread.profileRecord;
+    }
+
+    private static void changeLength(long time, int delta) {
+	lengthTicks[bucket(length)] += time - lastLengthChange;
+	lastLengthChange = time;
+	length += delta;
+    }
+
+    /**
+     * Return the histogram bucket of the specified value: 0 for 0, and
+     * <i>b</i> for 2<sup><i>b</i>-1</sup> through 2<sup><i>b</i></sup>-1.
+     */
+    private static int bucket(long value) {
+	return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    private static String bucketName(int bucket) {
+	if (bucket <= 1)
+	    return "" + bucket;
+	else
+	    return (1L << (bucket-1)) + "-" + ((1L << bucket) - 1);
+    }
+
+    private static void printHistogram(String title, long[] counts,
+				       long total) {
+	System.out.println(title);
+
+	for (int b=0; b<counts.length; b++) {
+	    if (counts[b] != 0) {
+		System.out.println(String.format("%14s %12d %5.1f%%",
+						 bucketName(b), counts[b],
+						 100.0 * counts[b] / total));
+	    }
+	}
+    }
+
+    /**
+     * Print the measurements. Called when Nachos halts.
+     */
+    private static void print() {
+	long time = Machine.timer().getTime();
+
+	KThread current = KThread.currentThread();
+	if (current != null) {
+	    ThreadRecord record = getRecord(current);
+	    record.cpuTicks += time - record.dispatched;
+	    record.dispatched = time;
+	}
+	changeLength(time, 0);
+
+	System.out.println("Scheduler profile: " + numDelays +
+			   " dispatches from the ready queue, " +
+			   records.size() + " threads");
+
+	if (numDelays > 0) {
+	    long maxDelay = 0;
+	    for (ThreadRecord record : records)
+		maxDelay = Math.max(maxDelay, record.maxDelay);
+
+	    printHistogram("Scheduling delay (ticks): mean " +
+			   totalDelay / numDelays + ", max " + maxDelay,
+			   delays, numDelays);
+	}
+
+	long totalTicks = 0;
+	for (long ticks : lengthTicks)
+	    totalTicks += ticks;
+
+	if (totalTicks > 0)
+	    printHistogram("Ready queue length (ticks at length):",
+			   lengthTicks, totalTicks);
+
+	if (numDonations > 0) {
+	    printHistogram("Donation chain depth: mean " +
+			   String.format("%.2f",
+					 (double) totalDepth / numDonations) +
+			   ", max " + maxDepth, depths, numDonations);
+	}
+
+	ArrayList<ThreadRecord> sorted = new ArrayList<ThreadRecord>(records);
+	Collections.sort(sorted, new Comparator<ThreadRecord>() {
+		public int compare(ThreadRecord a, ThreadRecord b) {
+		    return Long.compare(b.cpuTicks, a.cpuTicks);
+		}
+	    });
+
+	System.out.println("Threads by processor ticks:");
+	System.out.println(String.format("%12s %10s %12s %12s  %s",
+					 "cpu ticks", "dispatches",
+					 "mean delay", "max delay", "thread"));
+	for (int i=0; i<sorted.size() && i<threadsListed; i++) {
+	    ThreadRecord record = sorted.get(i);
+	    System.out.println(String.format("%12d %10d %12d %12d  %s",
+					     record.cpuTicks,
+					     record.dispatches,
+					     record.dispatches == 0 ? 0 :
+					     record.delayTicks /
+					     record.dispatches,
+					     record.maxDelay, record.name));
+	}
+	if (sorted.size() > threadsListed)
+	    System.out.println("(" + (sorted.size() - threadsListed) +
+			       " more threads)");
+    }
+
+    /**
+     * The measurements of one thread.
+     */
+    static class ThreadRecord {
+	ThreadRecord(String name) {
+	    this.name = name;
+	}
+
+	/** The name of the thread when it was first scheduled. */
+	String name;
+	/** The time the thread was last added to the ready queue. */
+	long readyTime;
+	/** The time the thread was last dispatched. */
+	long dispatched;
+	/** The number of times the thread was dispatched. */
+	long dispatches = 0;
+	/** The processor ticks the thread used. */
+	long cpuTicks = 0;
+	/** The total and largest scheduling delay of the thread. */
+	long delayTicks = 0, maxDelay = 0;
+	/** Whether the record is in <tt>records</tt>. */
+	boolean listed = false;
+    }
+
+    private static boolean enabled = false;
+
+    private static ArrayList<ThreadRecord> records =
+	new ArrayList<ThreadRecord>();
+    /** The number of threads listed in the report. */
+    private static final int threadsListed = 20;
+
+    private static long[] delays = new long[64];
+    private static long numDelays = 0, totalDelay = 0;
+
+    private static long[] lengthTicks = new long[64];
+    private static int length = 0;
+    private static long lastLengthChange;
+
+    private static long[] depths = new long[64];
+    private static long numDonations = 0, totalDepth = 0;
+    private static int maxDepth = 0;
+}
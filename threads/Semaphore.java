@@ -28,7 +28,23 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+        this(initialValue, true);
+    }
+
+    /**
+     * Allocate a new semaphore, which is profiled only if requested. A
+     * primitive built from semaphores, which profiles itself, need not
+     * profile them as well.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	profiled	whether to profile this semaphore, if the
+     *				<tt>Synch.profile</tt> key is set.
+     */
+    Semaphore(int initialValue, boolean profiled) {
         value = initialValue;
+
+        if (profiled)
+            profile = SynchProfile.create("Semaphore", this);
     }
 
     /**
@@ -37,7 +53,10 @@ public class Semaphore {
     public void P() {
         boolean intStatus = Machine.interrupt().disable();
 
+        long waitStart = -1;
         if (value == 0) {
+            if (profile != null)
+                waitStart = Machine.timer().getTime();
             waitQueue.waitForAccess(KThread.currentThread());
             KThread.sleep();
         }
@@ -45,6 +64,9 @@ public class Semaphore {
             value--;
         }
 
+        if (profile != null)
+            profile.acquired(KThread.currentThread(), waitStart);
+
         Machine.interrupt().restore(intStatus);
     }
 
@@ -101,4 +123,5 @@ public class Semaphore {
     private int value;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
+    private SynchProfile profile = null;
 }
@@ -0,0 +1,737 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A scheduler that gives each thread a share of access in proportion to its
+ * tickets, deterministically.
+ *
+ * <p>
+ * A stride scheduler associates a number of tickets with each thread, like a
+ * lottery scheduler. Each thread also has a <i>stride</i>, inversely
+ * proportional to its tickets, and a <i>pass</i> in the ready queue. The next
+ * thread to run is always the ready thread with the lowest pass, and its pass
+ * then advances by its stride, so over any interval each thread runs in
+ * proportion to its tickets, to within one turn. Threads with equal passes
+ * are dequeued in the order they started waiting.
+ *
+ * <p>
+ * A thread that becomes ready has its pass raised to the pass of the thread
+ * that last ran, so that time spent blocked does not build up a claim on the
+ * processor. Only the ready queue keeps these passes. In any other queue, a
+ * thread starts each wait one stride after the pass of the thread that queue
+ * last dequeued, so waits on locks, semaphores and joins are ordered by
+ * tickets too, but do not change any thread's share of the processor.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler transfers tickets through
+ * locks and through joins, and the tickets add. The threads that share access
+ * to a queue each receive the tickets of its waiters, as its owner does. A
+ * thread whose tickets change while it waits keeps the same fraction of its
+ * stride left to go before its turn.
+ *
+ * <p>
+ * Each queue is a binary heap ordered by pass, so adding a thread, dequeuing
+ * the next one, and changing a waiting thread's tickets all take time
+ * logarithmic in the number of waiting threads.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread with one ticket. Strides are this divided by
+     * the number of tickets, so it is large enough for billions of tickets
+     * to still have distinct strides.
+     */
+    public static final long strideOne = 1L << 40;
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the ready queue, the only queue that advances the pass each
+     * thread keeps.
+     *
+     * @return	a new stride ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new StrideQueue(false, true);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getEffectivePriority();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The number of threads that have started waiting, used to order
+     * threads with equal passes.
+     */
+    private long numWaits = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+     * pass.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority, boolean ready) {
+	    this.transferPriority = transferPriority;
+	    this.ready = ready;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquire(this);
+	}
+
+	public void acquireShared(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquireShared(this);
+	}
+
+	public void release(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).release(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState nextThread = pickNextThread();
+	    if (nextThread == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    nextThread.acquire(this);
+
+	    pass = nextThread.due;
+	    if (ready)
+		nextThread.pass = nextThread.due + nextThread.stride();
+
+	    return nextThread.thread;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    return heap[0];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].getThread() + " ");
+	    System.out.println();
+	}
+
+	/**
+	 * Add a waiting thread to the heap.
+	 */
+	void add(ThreadState state) {
+	    if (size == heap.length) {
+		ThreadState[] newHeap = new ThreadState[size*2];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    heap[size] = state;
+	    state.index = size++;
+	    siftUp(state.index);
+	}
+
+	/**
+	 * Remove a waiting thread from the heap.
+	 */
+	void remove(ThreadState state) {
+	    int i = state.index;
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+	    state.index = -1;
+
+	    if (last != state) {
+		heap[i] = last;
+		last.index = i;
+		siftUp(i);
+		siftDown(last.index);
+	    }
+	}
+
+	/**
+	 * Restore the heap order after a waiting thread's due pass changed.
+	 */
+	void update(ThreadState state) {
+	    siftUp(state.index);
+	    siftDown(state.index);
+	}
+
+	private void siftUp(int i) {
+	    ThreadState state = heap[i];
+
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!state.before(heap[parent]))
+		    break;
+		heap[i] = heap[parent];
+		heap[i].index = i;
+		i = parent;
+	    }
+
+	    heap[i] = state;
+	    state.index = i;
+	}
+
+	private void siftDown(int i) {
+	    ThreadState state = heap[i];
+
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && heap[child+1].before(heap[child]))
+		    child++;
+		if (!heap[child].before(state))
+		    break;
+		heap[i] = heap[child];
+		heap[i].index = i;
+		i = child;
+	    }
+
+	    heap[i] = state;
+	    state.index = i;
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, moving the
+	 * tickets its waiters transfer from the previous owner. A thread
+	 * sharing access that becomes the owner no longer shares it.
+	 */
+	void setOwner(ThreadState newOwner) {
+	    if (!transferPriority || owner == newOwner)
+		return;
+
+	    ThreadState oldOwner = owner;
+	    owner = newOwner;
+
+	    if (oldOwner != null)
+		SchedulerProfile.donation(1 +
+					  oldOwner.addTickets(-totalTickets));
+	    // a sharer already receives this queue's tickets
+	    if (newOwner != null && !removeSharer(newOwner))
+		SchedulerProfile.donation(1 +
+					  newOwner.addTickets(totalTickets));
+	}
+
+	/**
+	 * Remove the specified thread from the threads sharing access, if it
+	 * is one of them.
+	 *
+	 * @return	<tt>true</tt> if the thread was sharing access.
+	 */
+	boolean removeSharer(ThreadState state) {
+	    return sharers != null && sharers.remove(state);
+	}
+
+	/**
+	 * Pass a change in the tickets of this queue's waiters on to its
+	 * owner and the threads sharing access.
+	 *
+	 * @param	delta	the number of tickets added, which may be
+	 *			negative.
+	 */
+	void transferTickets(long delta) {
+	    if (!transferPriority)
+		return;
+
+	    int depth = 0;
+	    if (owner != null)
+		depth += 1 + owner.addTickets(delta);
+	    if (sharers != null) {
+		for (ThreadState sharer : sharers)
+		    depth += 1 + sharer.addTickets(delta);
+	    }
+
+	    SchedulerProfile.donation(depth);
+	}
+
+	/** The waiting threads, as a binary heap ordered by due pass. */
+	private ThreadState[] heap = new ThreadState[initialCapacity];
+	private int size = 0;
+
+	/** The total effective tickets of the waiting threads. */
+	long totalTickets = 0;
+	/** The due pass of the thread this queue last dequeued. */
+	long pass = 0;
+	/** <tt>true</tt> if this is the ready queue. */
+	private boolean ready;
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that owns this queue, if it transfers tickets. */
+	ThreadState owner = null;
+	/**
+	 * The threads that share access to this queue, if it transfers
+	 * tickets, or <tt>null</tt> if none ever has.
+	 */
+	ArrayList<ThreadState> sharers = null;
+    }
+
+    private static final int initialCapacity = 4;
+
+    /**
+     * The scheduling state of a thread in a stride scheduler.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+
+	    tickets = priority;
+	}
+
+	/**
+	 * Return the associated thread.
+	 *
+	 * @return	the associated thread.
+	 */
+	public KThread getThread() {
+	    return thread;
+	}
+
+	/**
+	 * Return the number of tickets of the associated thread.
+	 *
+	 * @return	the number of tickets of the associated thread.
+	 */
+	public int getPriority() {
+	    return priority;
+	}
+
+	/**
+	 * Return the tickets this thread holds, including those transferred
+	 * to it, or <tt>Integer.MAX_VALUE</tt> if there are more.
+	 *
+	 * @return	the effective number of tickets.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(tickets, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	priority	the new number of tickets.
+	 */
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    long delta = (long) priority - this.priority;
+	    this.priority = priority;
+	    SchedulerProfile.donation(addTickets(delta));
+	}
+
+	/**
+	 * Called when the associated thread starts waiting in the specified
+	 * queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(StrideQueue waitQueue) {
+	    Lib.assertTrue(waiting == null);
+
+	    // a thread waiting for a resource does not hold it
+	    release(waitQueue);
+
+	    if (waitQueue.ready)
+		due = Math.max(pass, waitQueue.pass);
+	    else
+		due = waitQueue.pass + stride();
+	    waitNumber = numWaits++;
+
+	    waiting = waitQueue;
+	    waitQueue.add(this);
+	    waitQueue.totalTickets += tickets;
+
+	    waitQueue.transferTickets(tickets);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue the thread acquired.
+	 */
+	public void acquire(StrideQueue waitQueue) {
+	    if (waiting == waitQueue) {
+		waitQueue.remove(this);
+		waitQueue.totalTickets -= tickets;
+		waiting = null;
+
+		waitQueue.transferTickets(-tickets);
+	    }
+
+	    waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Called when the associated thread has received access to whatever is
+	 * guarded by <tt>waitQueue</tt>, which it shares with other threads.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquireShared
+	 */
+	public void acquireShared(StrideQueue waitQueue) {
+	    Lib.assertTrue(waiting != waitQueue);
+
+	    if (!waitQueue.transferPriority || waitQueue.owner == this ||
+		(waitQueue.sharers != null && waitQueue.sharers.contains(this)))
+		return;
+
+	    if (waitQueue.sharers == null)
+		waitQueue.sharers = new ArrayList<ThreadState>();
+	    waitQueue.sharers.add(this);
+
+	    SchedulerProfile.donation(1 + addTickets(waitQueue.totalTickets));
+	}
+
+	/**
+	 * Called when the associated thread no longer has access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#release
+	 */
+	public void release(StrideQueue waitQueue) {
+	    if (waitQueue.owner == this)
+		waitQueue.setOwner(null);
+	    else if (waitQueue.removeSharer(this))
+		SchedulerProfile.donation(1 +
+					  addTickets(-waitQueue.totalTickets));
+	}
+
+	/**
+	 * Return the amount this thread's pass advances each time it runs.
+	 */
+	long stride() {
+	    return Math.max(1, strideOne / tickets);
+	}
+
+	/**
+	 * Add to the tickets of this thread, and to every queue, owner and
+	 * sharer along the chains that this thread waits for. The distance a
+	 * waiting thread has left to its due pass is scaled by the change in
+	 * its stride.
+	 *
+	 * @param	delta	the number of tickets to add, which may be
+	 *			negative.
+	 * @return	the number of owners the change was passed on to.
+	 */
+	int addTickets(long delta) {
+	    int depth = 0;
+
+	    for (ThreadState state=this; state!=null; ) {
+		long oldStride = state.stride();
+		state.tickets += delta;
+
+		StrideQueue queue = state.waiting;
+		if (queue == null)
+		    break;
+
+		long remaining = state.due - queue.pass;
+		if (remaining > 0) {
+		    state.due = queue.pass +
+			(long) ((double) remaining * state.stride() / oldStride);
+		    queue.update(state);
+		}
+
+		queue.totalTickets += delta;
+		if (!queue.transferPriority)
+		    break;
+
+		if (queue.sharers != null) {
+		    for (ThreadState sharer : queue.sharers)
+			depth += 1 + sharer.addTickets(delta);
+		}
+
+		state = queue.owner;
+		if (state != null)
+		    depth++;
+	    }
+
+	    return depth;
+	}
+
+	/**
+	 * Tests whether this thread is dequeued before another waiting thread.
+	 */
+	boolean before(ThreadState state) {
+	    return due < state.due ||
+		(due == state.due && waitNumber < state.waitNumber);
+	}
+
+	/** The thread with which this object is associated. */
+	public KThread thread;
+	/** The number of tickets of the associated thread. */
+	protected int priority = priorityDefault;
+	/**
+	 * The tickets of the associated thread, plus those transferred to it
+	 * by the threads waiting in queues it owns.
+	 */
+	long tickets;
+	/** The pass of the associated thread in the ready queue. */
+	long pass;
+	/** The pass at which this thread is due in the queue it waits in. */
+	long due;
+	/** The queue the associated thread is waiting in, if any. */
+	StrideQueue waiting;
+	/** The position of the associated thread in its queue's heap. */
+	int index;
+	/** Orders threads with equal passes. */
+	long waitNumber;
+    }
+
+    /**
+     * Test this scheduler, if it is the kernel's scheduler. Check that
+     * threads are dequeued in exact proportion to their tickets, also when
+     * they contend for a lock between turns in the ready queue, that tickets
+     * are transferred along a chain of queues and to threads sharing access,
+     * and taken back, and that thousands of waiting threads are handled
+     * quickly.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof StrideScheduler))
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	StrideScheduler s = new StrideScheduler();
+
+	// threads with 1, 2 and 3 tickets share 600 turns 100:200:300
+	ThreadQueue queue = s.newThreadQueue(false);
+	KThread[] threads = new KThread[3];
+	int[] turns = new int[3];
+	for (int i=0; i<3; i++) {
+	    threads[i] = new KThread().setName("share" + i);
+	    s.setPriority(threads[i], i+1);
+	    queue.waitForAccess(threads[i]);
+	}
+	for (int turn=0; turn<600; turn++) {
+	    KThread thread = queue.nextThread();
+	    for (int i=0; i<3; i++) {
+		if (thread == threads[i])
+		    turns[i]++;
+	    }
+	    queue.waitForAccess(thread);
+	}
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(Math.abs(turns[i] - 100*(i+1)) <= 1,
+			   "stride scheduler is unfair");
+	while (queue.nextThread() != null)
+	    ;
+
+	// the same threads keep the same share of the processor while each
+	// turn they also wait for a lock that a thread with one ticket keeps
+	// taking, which advances the lock queue's pass far beyond theirs
+	ThreadQueue ready = s.newReadyQueue();
+	ThreadQueue lock = s.newThreadQueue(true);
+	KThread hog = new KThread().setName("hog");
+	for (int i=0; i<3; i++) {
+	    turns[i] = 0;
+	    ready.waitForAccess(threads[i]);
+	}
+	for (int turn=0; turn<600; turn++) {
+	    KThread thread = ready.nextThread();
+	    for (int i=0; i<3; i++) {
+		if (thread == threads[i])
+		    turns[i]++;
+	    }
+	    lock.waitForAccess(hog);
+	    lock.waitForAccess(thread);
+	    while (lock.nextThread() != null)
+		;
+	    ready.waitForAccess(thread);
+	}
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(Math.abs(turns[i] - 100*(i+1)) <= 1,
+			   "lock waits change the share of the processor");
+	while (ready.nextThread() != null)
+	    ;
+
+	// tickets add up along a chain of locks
+	int depth = 100;
+	ThreadQueue[] chain = new ThreadQueue[depth];
+	KThread[] holders = new KThread[depth+1];
+	for (int i=0; i<=depth; i++) {
+	    holders[i] = new KThread().setName("holder" + i);
+	    s.setPriority(holders[i], 2);
+	}
+	for (int i=0; i<depth; i++) {
+	    chain[i] = s.newThreadQueue(true);
+	    chain[i].acquire(holders[i]);
+	    if (i > 0)
+		chain[i-1].waitForAccess(holders[i]);
+	}
+	chain[depth-1].waitForAccess(holders[depth]);
+	Lib.assertTrue(s.getEffectivePriority(holders[0]) == 2*(depth+1));
+
+	s.setPriority(holders[depth], 1000);
+	Lib.assertTrue(s.getEffectivePriority(holders[0]) == 2*depth + 1000);
+
+	for (int i=depth-1; i>=0; i--)
+	    Lib.assertTrue(chain[i].nextThread() == holders[i+1]);
+	Lib.assertTrue(s.getEffectivePriority(holders[0]) == 2);
+	Lib.assertTrue(s.getEffectivePriority(holders[depth]) == 1000);
+
+	// tickets are transferred to every thread sharing access
+	ThreadQueue shared = s.newThreadQueue(true);
+	KThread[] sharers = new KThread[3];
+	for (int i=0; i<3; i++) {
+	    sharers[i] = new KThread().setName("sharer" + i);
+	    shared.acquireShared(sharers[i]);
+	}
+	KThread writer = new KThread().setName("writer");
+	s.setPriority(writer, 5);
+	shared.waitForAccess(writer);
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(s.getEffectivePriority(sharers[i]) == 6);
+
+	shared.release(sharers[0]);
+	Lib.assertTrue(s.getEffectivePriority(sharers[0]) == 1);
+	Lib.assertTrue(s.getEffectivePriority(sharers[1]) == 6);
+	Lib.assertTrue(shared.nextThread() == writer);
+	for (int i=1; i<3; i++) {
+	    Lib.assertTrue(s.getEffectivePriority(sharers[i]) == 1);
+	    shared.release(sharers[i]);
+	}
+	shared.release(writer);
+
+	// thousands of waiting threads, dequeued until none are left
+	int numThreads = 5000;
+	for (int i=0; i<numThreads; i++) {
+	    KThread thread = new KThread().setName("waiter" + i);
+	    s.setPriority(thread, 1 + i%100);
+	    queue.waitForAccess(thread);
+	}
+	for (int i=0; i<numThreads; i++)
+	    Lib.assertTrue(queue.nextThread() != null);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("StrideScheduler test passed");
+    }
+}
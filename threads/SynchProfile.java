@@ -0,0 +1,381 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.WeakHashMap;
+
+/**
+ * Measures the contention on each <tt>Lock</tt>, <tt>Semaphore</tt>,
+ * <tt>Condition</tt> and <tt>Condition2</tt>, when the <tt>Synch.profile</tt>
+ * key is set, and prints the measurements when Nachos halts. For each
+ * instance, this records:
+ *
+ * <ul>
+ * <li>the number of acquisitions: calls to <tt>acquire()</tt> or
+ * <tt>P()</tt>, or for a condition variable, calls to <tt>sleep()</tt>;
+ * <li>the number of those that were contended, and had to wait;
+ * <li>the ticks spent waiting, from when the thread started waiting until it
+ * ran again;
+ * <li>for a lock, the ticks it was held;
+ * <li>the threads that spent the most ticks waiting.
+ * </ul>
+ *
+ * <p>
+ * Times are measured with <tt>Timer.getTime()</tt>. Each instance is named
+ * after the place it was allocated, such as <tt>PostOffice.&lt;init&gt;</tt>,
+ * so that the locks of one kernel object can be told apart from another's.
+ *
+ * <p>
+ * The profile keeps no primitive or thread alive. Once a primitive has been
+ * garbage collected, its measurements are added to a total for the place it
+ * was allocated, so the memory used grows with the number of places rather
+ * than with the number of primitives ever allocated. The threads that waited
+ * are only held weakly, and each instance remembers the names of the few
+ * that waited most, even after they finish.
+ */
+public class SynchProfile {
+    private SynchProfile(String kind, String site, int id) {
+	this.kind = kind;
+	this.site = site;
+	this.id = id;
+    }
+
+    /**
+     * Start profiling, if the <tt>Synch.profile</tt> key is set. Called by
+     * <tt>ThreadedKernel.initialize()</tt> before threading starts.
+     */
+    static void initialize() {
+	if (!Config.getBoolean("Synch.profile", false))
+	    return;
+
+	enabled = true;
+
+	Machine.addHaltReport(new Runnable() {
+		public void run() { print(); }
+	    });
+    }
+
+    /**
+     * Return a new profile for a synchronization primitive being allocated,
+     * or <tt>null</tt> if profiling is off. The primitive is named after the
+     * code that allocated it.
+     *
+     * @param	kind	the kind of primitive, such as <tt>"Lock"</tt>.
+     * @param	primitive	the primitive being allocated.
+     * @return	the profile of the new primitive, or <tt>null</tt>.
+     */
+    static SynchProfile create(String kind, Object primitive) {
+	if (!enabled)
+	    return null;
+
+	foldCollected();
+
+	String site = "?";
+	for (StackTraceElement frame : new Throwable().getStackTrace()) {
+	    if (!isConstructor(frame)) {
+		String className = frame.getClassName();
+		site = className.substring(className.lastIndexOf('.')+1) +
+		    "." + frame.getMethodName() + ":" +
+		    frame.getLineNumber();
+		break;
+	    }
+	}
+
+	SynchProfile profile = new SynchProfile(kind, site, numInstances++);
+	live.add(new Allocation(primitive, profile));
+	return profile;
+    }
+
+    /**
+     * Tests whether a stack frame is in this class, or in the constructor of
+     * a primitive, rather than in the code that allocated the primitive.
+     */
+    private static boolean isConstructor(StackTraceElement frame) {
+	String className = frame.getClassName();
+	if (className.equals(SynchProfile.class.getName()))
+	    return true;
+
+	return frame.getMethodName().equals("<init>") &&
+	    (className.equals(Lock.class.getName()) ||
+	     className.equals(Semaphore.class.getName()) ||
+	     className.equals(Condition.class.getName()) ||
+	     className.equals(Condition2.class.getName()));
+    }
+
+    /**
+     * Add the measurements of every primitive that has been garbage
+     * collected to the total for the place it was allocated.
+     */
+    private static void foldCollected() {
+	Allocation allocation;
+	while ((allocation = (Allocation) collected.poll()) != null) {
+	    live.remove(allocation);
+
+	    SynchProfile profile = allocation.profile;
+	    if (profile.acquisitions == 0)
+		continue;
+
+	    String key = profile.kind + " at " + profile.site;
+	    SynchProfile total = totals.get(key);
+	    if (total == null) {
+		total = new SynchProfile(profile.kind, profile.site, -1);
+		totals.put(key, total);
+	    }
+	    total.add(profile);
+	}
+    }
+
+    /**
+     * Record that the specified thread has acquired the lock or semaphore.
+     *
+     * @param	thread	the thread that acquired the primitive.
+     * @param	waitStart	the time the thread started waiting, or -1 if
+     *				it did not wait.
+     */
+    void acquired(KThread thread, long waitStart) {
+	long time = Machine.timer().getTime();
+
+	acquisitions++;
+	heldSince = time;
+
+	if (waitStart >= 0) {
+	    contended++;
+	    waited(thread, time - waitStart);
+	}
+    }
+
+    /**
+     * Record that the current thread is about to sleep on the condition
+     * variable. Every sleep waits, so it counts as a contended acquisition.
+     */
+    void sleeping() {
+	acquisitions++;
+	contended++;
+    }
+
+    /**
+     * Record that the specified thread has been woken from a sleep on the
+     * condition variable.
+     *
+     * @param	thread	the thread that was woken.
+     * @param	waitStart	the time the thread went to sleep.
+     */
+    void woken(KThread thread, long waitStart) {
+	waited(thread, Machine.timer().getTime() - waitStart);
+    }
+
+    /**
+     * Record that the thread holding the lock has released it.
+     */
+    void released() {
+	releases++;
+	holdTicks += Machine.timer().getTime() - heldSince;
+    }
+
+    /**
+     * Add a wait of the specified thread, and keep it among the threads that
+     * waited most if it now is one of them.
+     */
+    private void waited(KThread thread, long wait) {
+	waitTicks += wait;
+	maxWait = Math.max(maxWait, wait);
+
+	Waiter waiter = waiters.get(thread);
+	if (waiter == null) {
+	    waiter = new Waiter(thread.toString());
+	    waiters.put(thread, waiter);
+	}
+	waiter.waits++;
+	waiter.ticks += wait;
+
+	if (!waitingMost.contains(waiter))
+	    waitingMost.add(waiter);
+	keepWaitingMost();
+    }
+
+    /**
+     * Add the measurements of a collected instance to this total.
+     */
+    private void add(SynchProfile profile) {
+	instances++;
+	acquisitions += profile.acquisitions;
+	contended += profile.contended;
+	waitTicks += profile.waitTicks;
+	maxWait = Math.max(maxWait, profile.maxWait);
+	releases += profile.releases;
+	holdTicks += profile.holdTicks;
+
+	// a thread that waited on several instances is listed once
+	for (Waiter waiter : profile.waitingMost) {
+	    Waiter same = null;
+	    for (Waiter kept : waitingMost) {
+		if (kept.name.equals(waiter.name))
+		    same = kept;
+	    }
+
+	    if (same == null) {
+		same = new Waiter(waiter.name);
+		waitingMost.add(same);
+	    }
+	    same.waits += waiter.waits;
+	    same.ticks += waiter.ticks;
+	}
+	keepWaitingMost();
+    }
+
+    /**
+     * Sort the threads that waited most, and drop any beyond the number
+     * listed.
+     */
+    private void keepWaitingMost() {
+	Collections.sort(waitingMost, new Comparator<Waiter>() {
+		public int compare(Waiter a, Waiter b) {
+		    return Long.compare(b.ticks, a.ticks);
+		}
+	    });
+
+	while (waitingMost.size() > waitersListed)
+	    waitingMost.remove(waitingMost.size()-1);
+    }
+
+    /**
+     * Print the measurements of the most contended instances. Called when
+     * Nachos halts.
+     */
+    private static void print() {
+	foldCollected();
+
+	ArrayList<SynchProfile> sorted = new ArrayList<SynchProfile>();
+	long contended = 0;
+	for (Allocation allocation : live) {
+	    SynchProfile profile = allocation.profile;
+	    if (profile.acquisitions > 0)
+		sorted.add(profile);
+	    if (profile.contended > 0)
+		contended++;
+	}
+	sorted.addAll(totals.values());
+
+	Collections.sort(sorted, new Comparator<SynchProfile>() {
+		public int compare(SynchProfile a, SynchProfile b) {
+		    if (a.waitTicks != b.waitTicks)
+			return Long.compare(b.waitTicks, a.waitTicks);
+		    return Long.compare(b.acquisitions, a.acquisitions);
+		}
+	    });
+
+	System.out.println("Synchronization profile: " + numInstances +
+			   " instances, " + live.size() + " not collected, " +
+			   contended + " of those contended");
+	System.out.println(String.format(headerFormat,
+					 "acquired", "contended", "wait ticks",
+					 "mean wait", "max wait", "mean hold",
+					 "instance"));
+
+	for (int i=0; i<sorted.size() && i<instancesListed; i++) {
+	    SynchProfile profile = sorted.get(i);
+	    long meanWait = (profile.contended == 0) ? 0 :
+		profile.waitTicks / profile.contended;
+	    String meanHold = (profile.releases == 0) ? "-" :
+		"" + profile.holdTicks / profile.releases;
+	    String name = (profile.id >= 0) ?
+		profile.kind + " " + profile.id + " at " + profile.site :
+		profile.instances + " collected " + profile.kind + " at " +
+		profile.site;
+
+	    System.out.println(String.format(rowFormat,
+					     profile.acquisitions,
+					     profile.contended,
+					     profile.waitTicks, meanWait,
+					     profile.maxWait, meanHold, name));
+
+	    if (profile.waitingMost.isEmpty())
+		continue;
+
+	    StringBuffer line = new StringBuffer("    waiting most:");
+	    for (Waiter waiter : profile.waitingMost) {
+		line.append(" " + waiter.name + " (" + waiter.waits +
+			    " waits, " + waiter.ticks + " ticks)");
+	    }
+	    System.out.println(line);
+	}
+	if (sorted.size() > instancesListed)
+	    System.out.println("(" + (sorted.size() - instancesListed) +
+			       " more instances)");
+    }
+
+    /**
+     * The waits of one thread on one instance.
+     */
+    private static class Waiter {
+	Waiter(String name) {
+	    this.name = name;
+	}
+
+	/** The name of the thread when it first waited. */
+	String name;
+	long waits = 0, ticks = 0;
+    }
+
+    /**
+     * A weak reference to a profiled primitive, which is queued on
+     * <tt>collected</tt> once the primitive has been garbage collected.
+     */
+    private static class Allocation extends WeakReference<Object> {
+	Allocation(Object primitive, SynchProfile profile) {
+	    super(primitive, collected);
+	    this.profile = profile;
+	}
+
+	SynchProfile profile;
+    }
+
+    private String kind;
+    /** The place the instance was allocated. */
+    private String site;
+    /**
+     * The number of instances profiled before this one, or -1 for the total
+     * of the collected instances allocated at one place.
+     */
+    private int id;
+    /** The number of collected instances in this total. */
+    private int instances = 0;
+
+    private long acquisitions = 0, contended = 0;
+    private long waitTicks = 0, maxWait = 0;
+    private long releases = 0, holdTicks = 0;
+    /** The time the primitive was last acquired. */
+    private long heldSince;
+    /** The waits of each thread that has waited and not been collected. */
+    private WeakHashMap<KThread, Waiter> waiters =
+	new WeakHashMap<KThread, Waiter>();
+    /** The threads that have waited most, most first. */
+    private ArrayList<Waiter> waitingMost = new ArrayList<Waiter>();
+
+    private static boolean enabled = false;
+    private static int numInstances = 0;
+
+    /** The primitives that have not been collected. */
+    private static HashSet<Allocation> live = new HashSet<Allocation>();
+    private static ReferenceQueue<Object> collected =
+	new ReferenceQueue<Object>();
+    /** The totals of the collected instances, by kind and place. */
+    private static HashMap<String, SynchProfile> totals =
+	new HashMap<String, SynchProfile>();
+
+    private static final String headerFormat =
+	"%10s %10s %12s %10s %10s %10s  %s";
+    private static final String rowFormat =
+	"%10d %10d %12d %10d %10d %10s  %s";
+    /** The number of instances listed in the report. */
+    private static final int instancesListed = 20;
+    /** The number of threads listed for each instance. */
+    private static final int waitersListed = 3;
+}
@@ -91,6 +91,38 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that a thread has received access that it
+     * shares with other threads, such as a reader of a reader-writer lock.
+     * If the limited access object transfers priority, the threads waiting
+     * for access donate priority to every thread sharing access, as well as
+     * to the thread returned from <tt>nextThread()</tt> or passed to
+     * <tt>acquire()</tt>.
+     *
+     * <p>
+     * By default, this method does nothing, which is correct for queues that
+     * do not transfer priority.
+     *
+     * @param	thread	the thread that has received shared access.
+     */
+    public void acquireShared(KThread thread) {
+    }
+
+    /**
+     * Notify this thread queue that a thread no longer has access, whether
+     * it received it from <tt>nextThread()</tt>, <tt>acquire()</tt> or
+     * <tt>acquireShared()</tt>, so that waiting threads stop donating
+     * priority to it.
+     *
+     * <p>
+     * By default, this method does nothing, which is correct for queues that
+     * do not transfer priority.
+     *
+     * @param	thread	the thread that no longer has access.
+     */
+    public void release(KThread thread) {
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
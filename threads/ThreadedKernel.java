@@ -21,6 +21,8 @@ public class ThreadedKernel extends Kernel {
 	// set scheduler
 	String schedulerName = Config.getString("ThreadedKernel.scheduler");
 	scheduler = (Scheduler) Lib.constructObject(schedulerName);
+	SchedulerProfile.initialize();
+	SynchProfile.initialize();
 
 	// set fileSystem
 	String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
@@ -41,14 +43,34 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, <tt>Condition2</tt>, <tt>Communicator</tt>,
+     * <tt>Channel</tt>, <tt>ReadWriteLock</tt>, <tt>PriorityScheduler</tt>,
+     * <tt>LotteryScheduler</tt>, <tt>StrideScheduler</tt>,
+     * <tt>MultilevelFeedbackScheduler</tt>, <tt>FairScheduler</tt>, and
+     * <tt>ElevatorBank</tt> classes. Note that the autograder never calls this
+     * method, so it is safe to put additional tests here.
+     *
+     * <p>
+     * Each scheduler is only tested if it is the kernel's scheduler. The
+     * tests that take far longer than the rest only run if the
+     * <tt>ThreadedKernel.stressTest</tt> key is set.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	Condition2.selfTest();
+	LotteryScheduler.selfTest();
+	StrideScheduler.selfTest();
+	MultilevelFeedbackScheduler.selfTest();
+	FairScheduler.selfTest();
+	if (Config.getBoolean("ThreadedKernel.stressTest", false)) {
+	    Condition2.stressTest();
+	    Communicator.selfTest();
+	    Channel.selfTest();
+	    ReadWriteLock.selfTest();
+	    PriorityScheduler.stressTest();
+	}
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
     }
@@ -56,10 +78,11 @@ public class ThreadedKernel extends Kernel {
     }
     
     /**
-     * A threaded kernel does not run user programs, so this method does
-     * nothing.
+     * A threaded kernel does not run user programs, so this method only
+     * discards the scheduling measurements taken during the self tests.
      */
     public void run() {
+	SchedulerProfile.reset();
     }
 
     /**
@@ -484,18 +484,26 @@ public class UserProcess {
 		} 
 
 		OpenFile file = fdTable[fd];
-		if(file == null) {
+		if(file == null || count < 0) {
 			return -1;
 		}
 
-		byte[] toRead = new byte[count];
-		
-		int readCount = file.read(toRead, 0, count);
-		
-		if(readCount == -1) {
-			return -1;
+		// copy through ioBuffer a page at a time, rather than allocating
+		// a buffer for every call
+		int readCount = 0;
+		while(readCount < count) {
+			int length = Math.min(count - readCount, ioBuffer.length);
+			int amount = file.read(ioBuffer, 0, length);
+			if(amount == -1) {
+				return -1;
+			}
+			writeVirtualMemory(address + readCount, ioBuffer, 0, amount);
+			readCount += amount;
+
+			if(amount < length) {
+				break;
+			}
 		}
-		writeVirtualMemory(address, toRead);
 
 		return readCount;
     }
@@ -553,23 +561,27 @@ public class UserProcess {
 		}
 
 		OpenFile file = fdTable[fd];
-		if(file == null) {
+		if(file == null || count < 0) {
 			return -1;
 		}
 
-		byte[] buffer = new byte[count];
-		int bufferWriteCount = readVirtualMemory(address, buffer);
-		
-		if(bufferWriteCount == -1 || bufferWriteCount != count) {
-			return -1;
+		// copy through ioBuffer a page at a time, rather than allocating
+		// a buffer for every call
+		int writeCount = 0;
+		while(writeCount < count) {
+			int length = Math.min(count - writeCount, ioBuffer.length);
+			int bufferWriteCount = readVirtualMemory(address + writeCount,
+								 ioBuffer, 0, length);
+			if(bufferWriteCount != length) {
+				return -1;
+			}
+
+			if(file.write(ioBuffer, 0, length) != length) {
+				return -1;
+			}
+			writeCount += length;
 		}
 
-		int writeCount = file.write(buffer, 0, count);
-
-		if(writeCount != count) {
-			return -1;
-		} 
-		
 		return writeCount;
     }
 
@@ -707,6 +719,21 @@ public class UserProcess {
                 processor.writeRegister(Processor.regV0, result);
                 processor.advancePC();
                 break;				       
+
+            case Processor.exceptionPageFault:
+                // this kernel never invalidates a page itself, but one that
+                // was invalidated while still in memory (as an autograder
+                // may do) only needs to be made valid again, and the
+                // processor then retries the instruction
+                int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+                if (vpn >= 0 && vpn < pageTable.length &&
+                    pageTable[vpn] != null && !pageTable[vpn].valid) {
+                    pageTable[vpn].valid = true;
+                    break;
+                }
+                Lib.debug(dbgProcess, "Page fault at unmapped page " + vpn);
+                Lib.assertNotReached("Unexpected exception");
+                break;
                                
             default:
                 Lib.debug(dbgProcess, "Unexpected exception: " +
@@ -739,4 +766,6 @@ public class UserProcess {
     private UserProcess parent;
     private static int pidTracker = 0;
     private UThread thread;
+    /** The buffer that read() and write() copy through. */
+    private byte[] ioBuffer = new byte[pageSize];
 }